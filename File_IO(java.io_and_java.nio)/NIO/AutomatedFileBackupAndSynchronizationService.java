@@ -1,30 +1,96 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class AutomatedFileBackupAndSynchronizationService {
     private static final String logFileName = "automated_file_backup_log.txt";
     private static Path logFilePath = Paths.get(logFileName);
+    private static final DateTimeFormatter LOG_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final LogWriter logWriter = startLogWriter();
+    // Events for a path are held until it has been quiet this long, then collapsed into one action
+    private static final long QUIET_PERIOD_MILLIS = Long.getLong("backup.quietMillis", 500);
+    private static final long MAX_DELAY_MILLIS = Long.getLong("backup.maxDelayMillis", 10_000);
+    private static final int WORKER_COUNT = Integer.getInteger("backup.workers",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long STATS_INTERVAL_MILLIS = 10_000;
+    private static final String BACKUP_MODE = System.getProperty("backup.mode", "mirror");
+    // In delta mode a changed file only has its changed blocks written into the existing backup
+    private static final boolean DELTA_MODE = "delta".equals(BACKUP_MODE);
+    // In store mode every version of a file is kept as deduplicated chunks instead of a mirror
+    private static final boolean STORE_MODE = "store".equals(BACKUP_MODE);
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final int DELTA_BLOCK_SIZE = Integer.getInteger("backup.deltaBlockSize", 64 * 1024);
+    private static BackupWorkers workers;
     private static Path sourceDir;
     private static Path backupDir;
+    private static WatchService watcher;
+    // Every watched directory of the tree, relative to sourceDir, with its key
+    private static final Map<Path, WatchKey> watchedDirs = new ConcurrentHashMap<>();
+    // Bookkeeping about the backup, kept out of the backup itself so it stays a plain mirror
+    private static Path metadataDir;
+    private static Manifest manifest;
+    private static ChunkStore store;
 
     public static void main(String[] args) {
+        if (args.length >= 3 && (args[0].equals("versions") || args[0].equals("restore"))) {
+            runStoreCommand(args);
+            return;
+        }
         if (args.length != 1) {
             System.out.println("Usage: java AutomatedFileBackupAndSynchronizationService <source_directory_path>");
+            System.out.println("       java AutomatedFileBackupAndSynchronizationService versions"
+                    + " <source_directory_path> <file>");
+            System.out.println("       java AutomatedFileBackupAndSynchronizationService restore"
+                    + " <source_directory_path> <file> [version] [target_file]");
             return;
         }
 
@@ -39,120 +105,685 @@ public class AutomatedFileBackupAndSynchronizationService {
             return;
         }
 
-        System.out.println("This program only backs up files in the specified directory, not its subdirectories.");
+        System.out.println("This program backs up the specified directory together with all of its subdirectories.");
         System.out.println(
-                "Backup directory will be created as a sibling to the source directory with '_backup' suffix.");
+                "Backup directory will be created as a sibling to the source directory with '"
+                        + (STORE_MODE ? "_backup_store" : "_backup") + "' suffix.");
         System.out.println();
 
+        try {
+            // Created first, so the startup scan registers every directory as it goes
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            log("Error occured while setting up directory monitoring for: " + sourceDir.toAbsolutePath());
+            return;
+        }
+        workers = new BackupWorkers(WORKER_COUNT);
+        workers.start();
         setupBackDir(sourceDir);
+        if (manifest == null)
+            return;
 
         try {
-            WatchService watcher = FileSystems.getDefault().newWatchService();
-            sourceDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_MODIFY,
-                    StandardWatchEventKinds.ENTRY_DELETE);
-            log("Directory monitoring set up for: " + sourceDir.toAbsolutePath());
+            log("Directory monitoring set up for: " + sourceDir.toAbsolutePath() + " (" + watchedDirs.size()
+                    + " directories)");
 
+            ChangeCoalescer changes = new ChangeCoalescer(QUIET_PERIOD_MILLIS, MAX_DELAY_MILLIS);
+            Set<Path> overflowed = new LinkedHashSet<>();
             while (true) {
                 WatchKey key;
 
                 try {
-                    // Block until a key is available
-                    key = watcher.take();
+                    // Block until a key is available, or until the next pending change is due
+                    long wait = changes.millisUntilNextDue();
+                    key = wait < 0 ? watcher.take() : watcher.poll(wait, TimeUnit.MILLISECONDS);
                 } catch (InterruptedException e) {
                     log("Directory monitoring interrupted");
                     return;
                 }
 
-                // Process the events for the retrieved key
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    WatchEvent.Kind<?> kind = event.kind();
+                // Take every key that is already signalled, so that lost events are rescanned in one pass
+                while (key != null) {
+                    Path dir = sourceDir.relativize((Path) key.watchable());
+                    // Process the events for the retrieved key
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        WatchEvent.Kind<?> kind = event.kind();
 
-                    // This is important to handle a key being invalid
-                    if (kind == StandardWatchEventKinds.OVERFLOW) {
-                        continue;
+                        // Events were lost, so the directory is compared with its backup instead
+                        if (kind == StandardWatchEventKinds.OVERFLOW) {
+                            overflowed.add(dir);
+                            continue;
+                        }
+
+                        // Get the file name associated with the event
+                        // Suppress warnings for unchecked casts
+                        @SuppressWarnings("unchecked")
+                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
+                        Path path = dir.resolve(ev.context());
+                        Path created = sourceDir.resolve(path);
+                        if (kind == StandardWatchEventKinds.ENTRY_CREATE && !isWatched(path)
+                                && Files.isDirectory(created) && !Files.isSymbolicLink(created)) {
+                            // Files can already be inside by the time the new directory is watched
+                            Rescan rescan = new Rescan();
+                            rescan.directory(path);
+                            log("Directory created: " + path + ", " + rescan.summary());
+                            continue;
+                        }
+                        changes.record(path, kind);
                     }
 
-                    // Get the file name associated with the event
-                    // Suppress warnings for unchecked casts
-                    @SuppressWarnings("unchecked")
-                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path filename = ev.context();
-
-                    // Perform the appropriate action based on the event kind
-                    if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                        log("File created: " + filename);
-                        backupFile(sourceDir.resolve(filename), backupDir.resolve(filename));
-                    } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                        log("File modified: " + filename);
-                        backupFile(sourceDir.resolve(filename), backupDir.resolve(filename));
-                    } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                        log("File deleted: " + filename);
-                        deleteBackupFile(backupDir.resolve(filename));
+                    // Reset the key to continue receiving events
+                    boolean valid = key.reset();
+
+                    if (!valid) {
+                        // The directory is gone, its deletion event takes care of the backup
+                        watchedDirs.remove(dir, key);
                     }
+                    key = watcher.poll();
                 }
 
-                // Reset the key to continue receiving events
-                boolean valid = key.reset();
+                if (!overflowed.isEmpty()) {
+                    Rescan rescan = new Rescan();
+                    rescan.directories(overflowed);
+                    if (STORE_MODE)
+                        rescan.manifestOrphans();
+                    log("Events were lost, rescanned " + rescan.summary());
+                    overflowed.clear();
+                }
 
-                if (!valid) {
-                    break; // The key is no longer valid, exit the loop
+                if (!isWatched(Paths.get(""))) {
+                    log("Source directory is no longer watched: " + sourceDir.toAbsolutePath());
+                    break;
                 }
+
+                // Hand settled changes to the workers, the watcher never copies itself
+                for (Change change : changes.drainDue())
+                    workers.submit(change);
             }
 
-        } catch (IOException ex) {
-            log("Error occured while setting up directory monitoring for: " + sourceDir.toAbsolutePath());
+        } finally {
+            workers.close();
+            saveManifest();
         }
 
     }
 
+    private static LogWriter startLogWriter() {
+        LogWriter writer = new LogWriter(logFilePath);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "backup-log-flush"));
+        return writer;
+    }
+
     public static void setupBackDir(Path sourceDir) {
         try {
             backupDir = sourceDir.resolveSibling(sourceDir.getFileName() + "_backup");
-            if (!Files.exists(backupDir)) {
+            metadataDir = sourceDir.resolveSibling(sourceDir.getFileName() + "_backup_meta");
+            Files.createDirectories(metadataDir);
+            // The store has its own manifest, switching modes must not make either look up to date
+            manifest = Manifest.load(metadataDir.resolve(STORE_MODE ? "store_manifest" : "manifest"));
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    AutomatedFileBackupAndSynchronizationService::saveManifest, "backup-manifest-save"));
+            if (STORE_MODE) {
+                store = ChunkStore.forSource(sourceDir);
+                Files.createDirectories(store.root);
+                log("Backing up into the content-addressed store: " + store.root.toAbsolutePath());
+                backupExistingFiles();
+            } else if (!Files.exists(backupDir)) {
                 log("Creating backup directory: " + backupDir.toAbsolutePath());
                 Files.createDirectory(backupDir);
                 log("Backup directory created: " + backupDir.toAbsolutePath());
-                backupExistingFiles(sourceDir, backupDir);
+                backupExistingFiles();
             } else {
                 log("Backup directory already exists: " + backupDir.toAbsolutePath());
-                backupExistingFiles(sourceDir, backupDir);
+                backupExistingFiles();
             }
         } catch (IOException e) {
             log("Failed to create backup directory for: " + sourceDir.getFileName() + ". Error: " + e.getMessage());
         }
     }
 
-    public static void backupExistingFiles(Path sourceDir, Path backupDir) {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir)) {
-            log("Backing up existing files from: " + sourceDir.toAbsolutePath() + " to: " + backupDir.toAbsolutePath());
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) {
-                    backupFile(entry, backupDir.resolve(entry.getFileName()));
+    /**
+     * Brings the backup up to date with what changed while the service was not
+     * running. The whole tree is compared with the backup in parallel, watching
+     * each directory on the way, and afterwards the manifest entries of files
+     * that were not found are queued for deletion.
+     */
+    public static void backupExistingFiles() {
+        log("Backing up existing files from: " + sourceDir.toAbsolutePath() + " to: "
+                + (STORE_MODE ? store.root : backupDir).toAbsolutePath());
+        long start = System.currentTimeMillis();
+        Rescan rescan = new Rescan();
+        rescan.directory(Paths.get(""));
+        for (String key : manifest.keys()) {
+            if (!rescan.present.contains(key) && rescan.deleted.add(key)) {
+                workers.submit(new Change(Paths.get(key), System.currentTimeMillis()));
+                rescan.removed.increment();
+            }
+        }
+        log("Compared the existing files with the manifest in " + (System.currentTimeMillis() - start) + " ms: "
+                + rescan.summary());
+    }
+
+    private static boolean isWatched(Path relativeDir) {
+        WatchKey key = watchedDirs.get(relativeDir);
+        return key != null && key.isValid();
+    }
+
+    private static void watch(Path relativeDir) {
+        if (isWatched(relativeDir))
+            return;
+        try {
+            watchedDirs.put(relativeDir, sourceDir.resolve(relativeDir).register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE));
+        } catch (IOException e) {
+            log("Failed to watch directory: " + relativeDir + ". Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One comparison of source directories with their backups. Each directory is
+     * compared on its own, from a single listing of the source and one of the
+     * backup: a file whose size and modification time match its manifest entry
+     * is skipped without being read, a file that only looks changed is hashed
+     * and skipped if its content matches, and everything else is queued for the
+     * workers, as is whatever only the backup still has. Subdirectories that are
+     * not watched yet are watched and compared as well, those already watched
+     * are left to their own events, so a rescan after lost events touches only
+     * the directories that lost them. Entries are compared in parallel. In store
+     * mode there is no mirror to list, see manifestOrphans.
+     */
+    private static final class Rescan {
+        final Set<String> scanned = ConcurrentHashMap.newKeySet();
+        final Set<String> present = ConcurrentHashMap.newKeySet();
+        final Set<String> deleted = ConcurrentHashMap.newKeySet();
+        final LongAdder directories = new LongAdder();
+        final LongAdder unchanged = new LongAdder();
+        final LongAdder queued = new LongAdder();
+        final LongAdder removed = new LongAdder();
+
+        void directories(Collection<Path> relativeDirs) {
+            relativeDirs.parallelStream().forEach(this::directory);
+        }
+
+        void directory(Path relativeDir) {
+            watch(relativeDir);
+            directories.increment();
+            scanned.add(Manifest.key(relativeDir));
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir.resolve(relativeDir))) {
+                for (Path entry : stream)
+                    entries.add(entry);
+            } catch (IOException e) {
+                // A directory deleted meanwhile is taken care of by its parent
+                if (!(e instanceof NoSuchFileException))
+                    log("Failed to scan directory: " + relativeDir + ". Error: " + e.getMessage());
+                return;
+            }
+
+            Set<Path> names = new HashSet<>();
+            for (Path entry : entries)
+                names.add(entry.getFileName());
+            entries.parallelStream().forEach(entry -> {
+                Path relative = relativeDir.resolve(entry.getFileName());
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        if (!Files.isSymbolicLink(entry) && !isWatched(relative))
+                            directory(relative);
+                    } else if (attributes.isRegularFile()) {
+                        present.add(Manifest.key(relative));
+                        if (isBackedUp(entry, relative, attributes)) {
+                            unchanged.increment();
+                        } else {
+                            workers.submit(new Change(relative, System.currentTimeMillis()));
+                            queued.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    log("Failed to check file: " + relative + ". Error: " + e.getMessage());
+                }
+            });
+
+            // The store has no mirror, its deleted files are found through the manifest
+            if (STORE_MODE)
+                return;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir.resolve(relativeDir))) {
+                for (Path backup : stream) {
+                    Path relative = relativeDir.resolve(backup.getFileName());
+                    if (!names.contains(backup.getFileName()) && deleted.add(Manifest.key(relative))) {
+                        workers.submit(new Change(relative, System.currentTimeMillis()));
+                        removed.increment();
+                    }
                 }
+            } catch (NoSuchFileException e) {
+                // Nothing of this directory is backed up yet
+            } catch (IOException e) {
+                log("Failed to scan backup directory: " + relativeDir + ". Error: " + e.getMessage());
             }
-            log("Finished backing up existing files.");
-        } catch (Exception ex) {
-            log("Failed to backup existing files. Error: " + ex.getMessage());
+        }
+
+        /**
+         * The store has no mirror to list, so the files that disappeared from the
+         * scanned directories are found through the manifest instead: those in a
+         * scanned directory that were not seen, and those in a directory that no
+         * longer exists below a scanned one.
+         */
+        void manifestOrphans() {
+            Map<String, Boolean> gone = new HashMap<>();
+            for (String key : manifest.keys()) {
+                if (present.contains(key))
+                    continue;
+                int slash = key.lastIndexOf('/');
+                String parent = slash < 0 ? "" : key.substring(0, slash);
+                boolean orphan = scanned.contains(parent) || (underScanned(parent)
+                        && gone.computeIfAbsent(parent, dir -> !Files.isDirectory(sourceDir.resolve(dir))));
+                if (orphan && deleted.add(key)) {
+                    workers.submit(new Change(Paths.get(key), System.currentTimeMillis()));
+                    removed.increment();
+                }
+            }
+        }
+
+        private boolean underScanned(String dir) {
+            for (int slash = dir.lastIndexOf('/'); slash >= 0; slash = dir.lastIndexOf('/', slash - 1))
+                if (scanned.contains(dir.substring(0, slash)))
+                    return true;
+            return scanned.contains("");
+        }
+
+        String summary() {
+            return directories.sum() + " directories, " + (unchanged.sum() + queued.sum()) + " files, "
+                    + unchanged.sum() + " unchanged, " + queued.sum() + " queued for backup, " + removed.sum()
+                    + " deleted";
         }
     }
 
-    private static void backupFile(Path source, Path destination) {
+    /**
+     * Whether the backup of a source file is already current. Size and
+     * modification time decide when the manifest knows the file; when they
+     * differ but the size is the same, or when there is no manifest entry yet
+     * but a backup of the same size, the content hashes decide, so a touched
+     * file or a backup made before the manifest existed is not copied again.
+     */
+    private static boolean isBackedUp(Path source, Path relative, BasicFileAttributes attributes)
+            throws IOException {
+        Manifest.Entry entry = manifest.get(relative);
+        Path backup = backupDir.resolve(relative);
+        if (STORE_MODE ? entry == null || entry.size() != attributes.size()
+                : !Files.isRegularFile(backup) || Files.size(backup) != attributes.size())
+            return false;
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+        if (entry != null && entry.size() == attributes.size() && entry.modifiedMillis() == modifiedMillis)
+            return true;
+        byte[] hash = Manifest.hash(source);
+        byte[] backupHash = entry != null && entry.size() == attributes.size() ? entry.hash() : Manifest.hash(backup);
+        if (!Arrays.equals(hash, backupHash))
+            return false;
+        manifest.put(relative, new Manifest.Entry(attributes.size(), modifiedMillis, hash));
+        return true;
+    }
+
+    /**
+     * @return the number of bytes copied, 0 if nothing was copied
+     */
+    private static long backupFile(Path source, Path destination) {
         try {
             if (Files.isRegularFile(source)) {
-                Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-                log("Backup created for file: " + source.getFileName() + " at " + destination.toAbsolutePath());
+                // Taken before copying: a file that changes meanwhile looks changed again at the next start
+                BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+                MessageDigest contentHash = Manifest.contentDigest();
+                long written;
+                if (DELTA_MODE && Files.isRegularFile(destination)) {
+                    written = deltaBackupFile(source, destination, contentHash);
+                } else {
+                    Files.createDirectories(destination.getParent());
+                    written = copyFile(source, destination, contentHash);
+                    Files.deleteIfExists(signatureFor(destination));
+                    log("Backup created for file: " + source.getFileName() + " at " + destination.toAbsolutePath());
+                }
+                manifest.put(backupDir.relativize(destination), new Manifest.Entry(attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), contentHash.digest()));
+                return written;
             }
 
         } catch (IOException e) {
             log("Failed to create backup for file: " + source.getFileName() + ". Error: " + e.getMessage());
         }
+        return 0;
+    }
+
+    /**
+     * Copies the file and feeds its bytes to the digest on the way, so the
+     * manifest gets the content hash without a second read.
+     */
+    private static long copyFile(Path source, Path destination, MessageDigest contentHash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long copied = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer.clear()) != -1) {
+                buffer.flip();
+                contentHash.update(buffer.array(), 0, buffer.limit());
+                while (buffer.hasRemaining())
+                    copied += out.write(buffer);
+            }
+        }
+        return copied;
+    }
+
+    private static void saveManifest() {
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            System.out.println("Failed to save the backup manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * What was backed up for every file: its size and modification time at the
+     * time and a SHA-256 hash of its content. Kept in memory and saved as one
+     * compact binary file in the metadata directory whenever it changed, so the
+     * next start can tell unchanged files apart without reading them.
+     */
+    private static final class Manifest {
+        private static final int MAGIC = 0x424d4e46; // "BMNF"
+        private final Path path;
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private volatile boolean dirty = false;
+
+        record Entry(long size, long modifiedMillis, byte[] hash) {
+        }
+
+        private Manifest(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Paths are stored relative to the source directory with '/' separators.
+         */
+        static String key(Path relative) {
+            return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+        }
+
+        static Manifest load(Path path) throws IOException {
+            Manifest manifest = new Manifest(path);
+            if (!Files.exists(path))
+                return manifest;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a backup manifest: " + path);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    long size = in.readLong();
+                    long modifiedMillis = in.readLong();
+                    byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    manifest.entries.put(key, new Entry(size, modifiedMillis, hash));
+                }
+            }
+            return manifest;
+        }
+
+        Entry get(Path relative) {
+            return entries.get(key(relative));
+        }
+
+        void put(Path relative, Entry entry) {
+            entries.put(key(relative), entry);
+            dirty = true;
+        }
+
+        void remove(Path relative) {
+            if (entries.remove(key(relative)) != null)
+                dirty = true;
+        }
+
+        /**
+         * Removes the entries of every file below a directory.
+         */
+        void removeUnder(Path relativeDir) {
+            String prefix = key(relativeDir) + "/";
+            if (entries.keySet().removeIf(key -> key.startsWith(prefix)))
+                dirty = true;
+        }
+
+        Set<String> keys() {
+            return entries.keySet();
+        }
+
+        /**
+         * Writes the manifest if it changed since the last save, through a
+         * temporary file so a crash never leaves half a manifest behind.
+         */
+        synchronized void save() throws IOException {
+            if (!dirty)
+                return;
+            dirty = false;
+            Map<String, Entry> snapshot = new HashMap<>(entries);
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size());
+                    out.writeLong(entry.getValue().modifiedMillis());
+                    out.writeByte(entry.getValue().hash().length);
+                    out.write(entry.getValue().hash());
+                }
+            } catch (IOException e) {
+                dirty = true;
+                throw e;
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static MessageDigest contentDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is always available", e);
+            }
+        }
+
+        static byte[] hash(Path file) throws IOException {
+            MessageDigest digest = contentDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (channel.read(buffer.clear()) != -1)
+                    digest.update(buffer.array(), 0, buffer.flip().limit());
+            }
+            return digest.digest();
+        }
+    }
+
+    private static Path signatureFor(Path backupFile) {
+        Path relative = backupDir.relativize(backupFile);
+        return metadataDir.resolve("signatures").resolve(relative + ".sig");
+    }
+
+    /**
+     * Brings an existing backup up to date by writing only the blocks that differ
+     * from the source. The backup's block signatures are kept on disk, so the
+     * backup itself is only read when they are missing or stale; the source is
+     * read once. Blocks are fixed-size and compared only with the backup block at
+     * the same offset, so an insertion rewrites everything after it. The hash of
+     * every source block is computed, because the signature saved for the next run
+     * needs it, and the block is written in place with a positional write when it
+     * differs from the backup's. An append to a large file therefore costs only
+     * its new tail. The whole source also goes
+     * through contentHash, for the manifest.
+     *
+     * @return the number of bytes written
+     */
+    private static long deltaBackupFile(Path source, Path destination, MessageDigest contentHash)
+            throws IOException {
+        Path signaturePath = signatureFor(destination);
+        BlockSignature old = BlockSignature.load(signaturePath, destination, DELTA_BLOCK_SIZE);
+        if (old == null)
+            old = BlockSignature.compute(destination, DELTA_BLOCK_SIZE);
+
+        long written = 0;
+        int changedBlocks = 0;
+        BlockSignature updated;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            updated = new BlockSignature(DELTA_BLOCK_SIZE, size);
+            ByteBuffer block = ByteBuffer.allocate(DELTA_BLOCK_SIZE);
+            MessageDigest strong = BlockSignature.strongDigest();
+            for (int index = 0; index < updated.blockCount(); index++) {
+                long position = (long) index * DELTA_BLOCK_SIZE;
+                readBlock(in, block, position, updated.blockLength(index));
+                contentHash.update(block.array(), 0, block.limit());
+                strong.update(block.array(), 0, block.limit());
+                updated.set(index, strong.digest());
+                if (old.matches(index, updated)) {
+                    continue;
+                }
+                while (block.hasRemaining())
+                    out.write(block, position + block.position());
+                written += block.limit();
+                changedBlocks++;
+            }
+            if (out.size() > size)
+                out.truncate(size);
+            out.force(false);
+        }
+        updated.save(signaturePath, destination);
+        log("Delta backup for file: " + source.getFileName() + ", " + changedBlocks + " of "
+                + updated.blockCount() + " blocks changed, " + written + " bytes written");
+        return written;
+    }
+
+    private static void readBlock(FileChannel channel, ByteBuffer block, long position, int length)
+            throws IOException {
+        block.clear().limit(length);
+        while (block.hasRemaining())
+            if (channel.read(block, position + block.position()) < 0)
+                throw new IOException("The file shrank while it was being read");
+        block.flip();
+    }
+
+    /**
+     * The MD5 hash of every block of one backup file. Blocks are only compared at
+     * the same offset, so there is no rolling search that a cheaper checksum could
+     * speed up. Saved as a small binary file together with the size and
+     * modification time the backup had, so a backup changed by anything else is
+     * noticed and its signature recomputed.
+     */
+    private static final class BlockSignature {
+        // Signatures from before the weak checksum was dropped used "BSIG" and are recomputed
+        private static final int MAGIC = 0x42534732; // "BSG2"
+        private static final int STRONG_LENGTH = 16;
+        private final int blockSize;
+        private final long fileSize;
+        private final byte[][] strong;
+
+        BlockSignature(int blockSize, long fileSize) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+            this.strong = new byte[(int) ((fileSize + blockSize - 1) / blockSize)][];
+        }
+
+        int blockCount() {
+            return strong.length;
+        }
+
+        int blockLength(int index) {
+            return (int) Math.min(blockSize, fileSize - (long) index * blockSize);
+        }
+
+        void set(int index, byte[] strongHash) {
+            strong[index] = strongHash;
+        }
+
+        /**
+         * Whether block index has the same length and content in both signatures.
+         */
+        boolean matches(int index, BlockSignature other) {
+            return index < blockCount() && blockLength(index) == other.blockLength(index)
+                    && Arrays.equals(strong[index], other.strong[index]);
+        }
+
+        static MessageDigest strongDigest() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is always available", e);
+            }
+        }
+
+        static BlockSignature compute(Path file, int blockSize) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                BlockSignature signature = new BlockSignature(blockSize, channel.size());
+                ByteBuffer block = ByteBuffer.allocate(blockSize);
+                MessageDigest strong = strongDigest();
+                for (int index = 0; index < signature.blockCount(); index++) {
+                    readBlock(channel, block, (long) index * blockSize, signature.blockLength(index));
+                    strong.update(block.array(), 0, block.limit());
+                    signature.set(index, strong.digest());
+                }
+                return signature;
+            }
+        }
+
+        /**
+         * Reads a saved signature, or returns null if there is none or it does not
+         * describe the backup as it is now.
+         */
+        static BlockSignature load(Path path, Path backupFile, int blockSize) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != MAGIC || in.readInt() != blockSize)
+                    return null;
+                long fileSize = in.readLong();
+                long modifiedMillis = in.readLong();
+                if (fileSize != Files.size(backupFile)
+                        || modifiedMillis != Files.getLastModifiedTime(backupFile).toMillis())
+                    return null;
+                BlockSignature signature = new BlockSignature(blockSize, fileSize);
+                for (int index = 0; index < signature.blockCount(); index++) {
+                    byte[] strongHash = new byte[STRONG_LENGTH];
+                    in.readFully(strongHash);
+                    signature.set(index, strongHash);
+                }
+                return signature;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        void save(Path path, Path backupFile) throws IOException {
+            Files.createDirectories(path.getParent());
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(blockSize);
+                out.writeLong(fileSize);
+                out.writeLong(Files.getLastModifiedTime(backupFile).toMillis());
+                for (int index = 0; index < blockCount(); index++)
+                    out.write(strong[index]);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
     }
 
     private static void deleteBackupFile(Path backupFile) {
         try {
+            if (Files.isDirectory(backupFile) && !Files.isSymbolicLink(backupFile)) {
+                deleteBackupTree(backupFile);
+                return;
+            }
+            manifest.remove(backupDir.relativize(backupFile));
             if (Files.isRegularFile(backupFile)) {
                 Files.deleteIfExists(backupFile);
+                Files.deleteIfExists(signatureFor(backupFile));
                 log("Backup deleted for file: " + backupFile.getFileName());
             }
         } catch (IOException e) {
@@ -161,34 +792,634 @@ public class AutomatedFileBackupAndSynchronizationService {
     }
 
     /**
-     * Logs a message to the log file.
+     * Adds the current content of a file to the store as a new version.
+     *
+     * @return the number of bytes written, only chunks the store did not have yet count
+     */
+    private static long storeFile(Path source, Path relative) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            MessageDigest contentHash = Manifest.contentDigest();
+            ChunkStore.Version version = store.add(source, attributes, contentHash);
+            store.append(relative, version);
+            manifest.put(relative, new Manifest.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    version.hash()));
+            log("Version stored for file: " + relative + ", " + version.chunks().size() + " chunks, "
+                    + version.written() + " new bytes written");
+            return version.written();
+        } catch (IOException e) {
+            log("Failed to store file: " + relative + ". Error: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Records the deletion of a file, or of every file below a deleted directory,
+     * as a version of its own. Earlier versions stay restorable.
+     */
+    private static void storeDeletion(Path relative) {
+        String key = Manifest.key(relative);
+        String prefix = key + "/";
+        for (String stored : new ArrayList<>(manifest.keys())) {
+            if (!stored.equals(key) && !stored.startsWith(prefix))
+                continue;
+            try {
+                store.append(Paths.get(stored), ChunkStore.Version.deleted());
+                manifest.remove(Paths.get(stored));
+            } catch (IOException e) {
+                log("Failed to record the deletion of file: " + stored + ". Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists or restores the versions kept in the store of a source directory.
+     */
+    private static void runStoreCommand(String[] args) {
+        Path source = Paths.get(args[1]);
+        ChunkStore versions = ChunkStore.forSource(source);
+        Path file = Paths.get(args[2]);
+        Path relative = file.isAbsolute() ? source.toAbsolutePath().relativize(file) : file;
+        try {
+            List<ChunkStore.Version> history = versions.history(relative);
+            if (history.isEmpty()) {
+                System.out.println("No versions stored for: " + relative);
+                return;
+            }
+            if (args[0].equals("versions")) {
+                for (int i = 0; i < history.size(); i++) {
+                    ChunkStore.Version version = history.get(i);
+                    String backedUp = LocalDateTime.ofInstant(Instant.ofEpochMilli(version.backupMillis()),
+                            ZoneId.systemDefault()).format(LOG_TIMESTAMP_FORMAT);
+                    System.out.println((i + 1) + "  " + backedUp + "  " + (version.isDeletion() ? "deleted"
+                            : version.size() + " bytes in " + version.chunks().size() + " chunks"));
+                }
+                return;
+            }
+
+            int number = args.length > 3 ? Integer.parseInt(args[3]) : history.size();
+            while (args.length <= 3 && number > 0 && history.get(number - 1).isDeletion())
+                number--;
+            if (number < 1 || number > history.size() || history.get(number - 1).isDeletion()) {
+                System.out.println("No restorable version " + (args.length > 3 ? args[3] : "") + " of: " + relative);
+                return;
+            }
+            Path target = args.length > 4 ? Paths.get(args[4])
+                    : Paths.get(relative.getFileName() + ".v" + number);
+            versions.restore(history.get(number - 1), target);
+            System.out.println("Restored version " + number + " of " + relative + " to " + target.toAbsolutePath());
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Failed to " + args[0] + " " + relative + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A content-addressed, deduplicating backup store. Files are cut into chunks
+     * at content-defined boundaries with a gear rolling hash, so an insertion
+     * only changes the chunks around it, and every chunk is kept once under its
+     * SHA-256 hash in chunks/. Each source file has an append-only history in
+     * versions/ listing, for every version, its size, modification time, content
+     * hash and chunks, so any version can be put back together. A chunk that is
+     * already in the store, from an earlier version or another file, is never
+     * written again.
+     */
+    private static final class ChunkStore {
+        private static final int MAGIC = 0x42564552; // "BVER"
+        private static final int MIN_CHUNK_SIZE = 16 * 1024;
+        private static final int MAX_CHUNK_SIZE = 256 * 1024;
+        // Cut where the top 16 bits of the hash are zero: 64 KiB chunks on average
+        private static final long BOUNDARY_MASK = 0xffffL << 48;
+        private static final long[] GEAR = gearTable();
+        private static final HexFormat HEX = HexFormat.of();
+        private final Path root;
+
+        record Chunk(byte[] hash, int length) {
+        }
+
+        record Version(long backupMillis, long size, long modifiedMillis, byte[] hash, List<Chunk> chunks,
+                long written) {
+            static Version deleted() {
+                return new Version(System.currentTimeMillis(), -1, 0, new byte[0], List.of(), 0);
+            }
+
+            boolean isDeletion() {
+                return size < 0;
+            }
+        }
+
+        private ChunkStore(Path root) {
+            this.root = root;
+        }
+
+        static ChunkStore forSource(Path sourceDir) {
+            Path absolute = sourceDir.toAbsolutePath().normalize();
+            return new ChunkStore(absolute.resolveSibling(absolute.getFileName() + "_backup_store"));
+        }
+
+        // Fixed seed: the boundaries, and with them the deduplication, must not change between runs
+        private static long[] gearTable() {
+            Random random = new Random(0x6765617263646321L);
+            long[] table = new long[256];
+            for (int i = 0; i < table.length; i++)
+                table[i] = random.nextLong();
+            return table;
+        }
+
+        /**
+         * Chunks the file, storing the chunks the store does not have yet, and
+         * feeds its content to contentHash on the way.
+         */
+        Version add(Path source, BasicFileAttributes attributes, MessageDigest contentHash) throws IOException {
+            List<Chunk> chunks = new ArrayList<>();
+            long written = 0;
+            long size = 0;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            byte[] chunk = new byte[MAX_CHUNK_SIZE];
+            int length = 0;
+            long hash = 0;
+            MessageDigest chunkHash = Manifest.contentDigest();
+            try (InputStream in = Files.newInputStream(source)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    contentHash.update(buffer, 0, read);
+                    size += read;
+                    for (int i = 0; i < read; i++) {
+                        chunk[length++] = buffer[i];
+                        hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                        if (length == MAX_CHUNK_SIZE || (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+                            written += put(chunk, length, chunkHash, chunks);
+                            length = 0;
+                            hash = 0;
+                        }
+                    }
+                }
+            }
+            if (length > 0)
+                written += put(chunk, length, chunkHash, chunks);
+            return new Version(System.currentTimeMillis(), size, attributes.lastModifiedTime().toMillis(),
+                    contentHash.digest(), chunks, written);
+        }
+
+        /**
+         * @return the number of bytes written, 0 if the store already had the chunk
+         */
+        private long put(byte[] chunk, int length, MessageDigest chunkHash, List<Chunk> chunks) throws IOException {
+            chunkHash.update(chunk, 0, length);
+            byte[] hash = chunkHash.digest();
+            chunks.add(new Chunk(hash, length));
+            Path path = chunkPath(hash);
+            if (Files.exists(path))
+                return 0;
+            Files.createDirectories(path.getParent());
+            // Written aside and moved into place, so a chunk that exists is always complete
+            Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, Arrays.copyOf(chunk, length));
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return length;
+        }
+
+        private Path chunkPath(byte[] hash) {
+            String hex = HEX.formatHex(hash);
+            return root.resolve("chunks").resolve(hex.substring(0, 2)).resolve(hex);
+        }
+
+        private Path historyPath(Path relative) {
+            return root.resolve("versions").resolve(relative + ".versions");
+        }
+
+        void append(Path relative, Version version) throws IOException {
+            Path path = historyPath(relative);
+            Files.createDirectories(path.getParent());
+            boolean empty = !Files.exists(path) || Files.size(path) == 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                if (empty)
+                    out.writeInt(MAGIC);
+                out.writeLong(version.backupMillis());
+                out.writeLong(version.size());
+                out.writeLong(version.modifiedMillis());
+                out.writeByte(version.hash().length);
+                out.write(version.hash());
+                out.writeInt(version.chunks().size());
+                for (Chunk chunk : version.chunks()) {
+                    out.write(chunk.hash());
+                    out.writeInt(chunk.length());
+                }
+            }
+        }
+
+        /**
+         * Every version of a file, oldest first. A version cut short by a crash
+         * while it was being appended is ignored.
+         */
+        List<Version> history(Path relative) throws IOException {
+            Path path = historyPath(relative);
+            List<Version> versions = new ArrayList<>();
+            if (!Files.exists(path))
+                return versions;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a version history: " + path);
+                while (in.available() > 0) {
+                    long backupMillis = in.readLong();
+                    long size = in.readLong();
+                    long modifiedMillis = in.readLong();
+                    byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    int count = in.readInt();
+                    List<Chunk> chunks = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        byte[] chunkHash = new byte[32];
+                        in.readFully(chunkHash);
+                        chunks.add(new Chunk(chunkHash, in.readInt()));
+                    }
+                    versions.add(new Version(backupMillis, size, modifiedMillis, hash, chunks, 0));
+                }
+            } catch (EOFException e) {
+                // The last version was not completely written
+            }
+            return versions;
+        }
+
+        /**
+         * Puts a version back together from its chunks, checking every chunk and
+         * the whole content against their hashes before the target is replaced.
+         */
+        void restore(Version version, Path target) throws IOException {
+            Path absolute = target.toAbsolutePath();
+            Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+            MessageDigest contentHash = Manifest.contentDigest();
+            MessageDigest chunkHash = Manifest.contentDigest();
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Chunk chunk : version.chunks()) {
+                    byte[] content = Files.readAllBytes(chunkPath(chunk.hash()));
+                    if (content.length != chunk.length() || !Arrays.equals(chunkHash.digest(content), chunk.hash()))
+                        throw new IOException("Chunk " + HEX.formatHex(chunk.hash()) + " is damaged");
+                    contentHash.update(content);
+                    ByteBuffer buffer = ByteBuffer.wrap(content);
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            if (!Arrays.equals(contentHash.digest(), version.hash())) {
+                Files.deleteIfExists(temporary);
+                throw new IOException("The restored content does not match the stored hash");
+            }
+            Files.setLastModifiedTime(temporary, FileTime.fromMillis(version.modifiedMillis()));
+            Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Removes the backup of a deleted directory with everything below it, along
+     * with their manifest entries and block signatures.
+     */
+    private static void deleteBackupTree(Path backupDirectory) throws IOException {
+        Path relative = backupDir.relativize(backupDirectory);
+        manifest.removeUnder(relative);
+        deleteTree(backupDirectory);
+        deleteTree(metadataDir.resolve("signatures").resolve(relative));
+        log("Backup deleted for directory: " + relative);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null)
+                    throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Carries out the final action for a path once its events have settled. The
+     * source is checked again at this point, so a file created and deleted within
+     * the quiet period is simply removed from the backup, and a file deleted and
+     * recreated is copied. Changes without events come from the startup backup.
+     *
+     * @return the number of bytes copied
+     */
+    private static long apply(Change change) {
+        Path source = sourceDir.resolve(change.path);
+        Path destination = backupDir.resolve(change.path);
+        String coalesced = change.events > 1 ? " (" + change.events + " events coalesced)" : "";
+        if (Files.isRegularFile(source)) {
+            if (change.events > 0)
+                log((change.created ? "File created: " : "File modified: ") + change.path + coalesced);
+            return STORE_MODE ? storeFile(source, change.path) : backupFile(source, destination);
+        } else if (!Files.exists(source)) {
+            log("File deleted: " + change.path + coalesced);
+            if (STORE_MODE)
+                storeDeletion(change.path);
+            else
+                deleteBackupFile(destination);
+        }
+        return 0;
+    }
+
+    /**
+     * The settled outcome of the events seen for one path.
+     */
+    private static final class Change {
+        final Path path;
+        final long firstEventMillis;
+        long dueMillis;
+        int events = 0;
+        boolean created = false;
+
+        Change(Path path, long now) {
+            this.path = path;
+            this.firstEventMillis = now;
+        }
+    }
+
+    /**
+     * Collects watch events per path until the path has been quiet for the quiet
+     * period, so the dozens of ENTRY_MODIFY events one large write produces end up
+     * as a single copy. A path that never goes quiet is still dispatched once its
+     * first event is maxDelay old, so a file that is written continuously keeps
+     * being backed up. Only used from the watcher thread.
+     */
+    private static final class ChangeCoalescer {
+        private final long quietPeriodMillis;
+        private final long maxDelayMillis;
+        private final Map<Path, Change> pending = new LinkedHashMap<>();
+
+        ChangeCoalescer(long quietPeriodMillis, long maxDelayMillis) {
+            this.quietPeriodMillis = quietPeriodMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        void record(Path path, WatchEvent.Kind<?> kind) {
+            long now = System.currentTimeMillis();
+            Change change = pending.computeIfAbsent(path, p -> new Change(p, now));
+            change.events++;
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+                change.created = true;
+            change.dueMillis = Math.min(now + quietPeriodMillis, change.firstEventMillis + maxDelayMillis);
+        }
+
+        /**
+         * Milliseconds until the earliest pending change is due, 0 if one already
+         * is, or -1 if nothing is pending.
+         */
+        long millisUntilNextDue() {
+            long next = Long.MAX_VALUE;
+            for (Change change : pending.values())
+                next = Math.min(next, change.dueMillis);
+            return next == Long.MAX_VALUE ? -1 : Math.max(0, next - System.currentTimeMillis());
+        }
+
+        List<Change> drainDue() {
+            long now = System.currentTimeMillis();
+            List<Change> due = new ArrayList<>();
+            Iterator<Change> changes = pending.values().iterator();
+            while (changes.hasNext()) {
+                Change change = changes.next();
+                if (change.dueMillis <= now) {
+                    due.add(change);
+                    changes.remove();
+                }
+            }
+            return due;
+        }
+    }
+
+    /**
+     * A fixed pool of threads that carry out changes, so a large copy never holds
+     * up the watcher. Each path is handled by at most one worker at a time: a
+     * change for a path that is already queued is merged into the queued one, and
+     * a change for a path that is being copied waits until that copy is done and
+     * then runs once more. Every few seconds the pool logs its queue depth and
+     * copy throughput.
+     */
+    private static final class BackupWorkers {
+        private final int workerCount;
+        private final LinkedBlockingQueue<Path> ready = new LinkedBlockingQueue<>();
+        // Guarded by this: the change waiting to run for each queued or running path
+        private final Map<Path, Change> queued = new HashMap<>();
+        private final Set<Path> running = new HashSet<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final LongAdder filesCopied = new LongAdder();
+        private final LongAdder bytesCopied = new LongAdder();
+        private volatile boolean closing = false;
+
+        BackupWorkers(int workerCount) {
+            this.workerCount = workerCount;
+        }
+
+        void start() {
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(this::work, "backup-worker-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                threads.add(worker);
+            }
+            Thread reporter = new Thread(this::report, "backup-stats");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        synchronized void submit(Change change) {
+            Change waiting = queued.get(change.path);
+            if (waiting != null) {
+                waiting.events += change.events;
+                waiting.created |= change.created;
+                return;
+            }
+            queued.put(change.path, change);
+            // A running path is queued again by its worker when it finishes
+            if (!running.contains(change.path))
+                ready.add(change.path);
+        }
+
+        synchronized int queueDepth() {
+            return queued.size();
+        }
+
+        private void work() {
+            while (true) {
+                Path path;
+                try {
+                    path = ready.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Change change;
+                synchronized (this) {
+                    change = queued.remove(path);
+                    running.add(path);
+                }
+                try {
+                    long bytes = apply(change);
+                    if (bytes > 0) {
+                        filesCopied.increment();
+                        bytesCopied.add(bytes);
+                    }
+                } catch (RuntimeException e) {
+                    // A worker that died here would shrink the pool without a trace
+                    log("Failed to apply change to file: " + path + ". Error: " + e);
+                } finally {
+                    synchronized (this) {
+                        running.remove(path);
+                        if (queued.containsKey(path))
+                            ready.add(path);
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void report() {
+            long lastFiles = 0;
+            long lastBytes = 0;
+            while (!closing) {
+                try {
+                    Thread.sleep(STATS_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long files = filesCopied.sum();
+                long bytes = bytesCopied.sum();
+                int depth = queueDepth();
+                if (files != lastFiles || depth > 0)
+                    log(String.format("Backup workers: %d queued, %d copied in the last %ds (%.2f MB/s)", depth,
+                            files - lastFiles, STATS_INTERVAL_MILLIS / 1000,
+                            (bytes - lastBytes) / 1048576.0 / (STATS_INTERVAL_MILLIS / 1000.0)));
+                lastFiles = files;
+                lastBytes = bytes;
+                saveManifest();
+            }
+        }
+
+        /**
+         * Waits for the queued changes to be carried out, then stops the workers.
+         */
+        void close() {
+            closing = true;
+            synchronized (this) {
+                try {
+                    while (!queued.isEmpty() || !running.isEmpty())
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (Thread worker : threads)
+                worker.interrupt();
+        }
+    }
+
+    /**
+     * Logs a message to the log file. The entry is only queued, so callers never
+     * wait for the disk; if the writer falls so far behind that the queue is
+     * full, the entry is dropped and counted instead.
      *
      * @param msg the message to log
      */
     private static void log(String msg) {
+        String logEntry = LocalDateTime.now().format(LOG_TIMESTAMP_FORMAT) + " - " + msg + System.lineSeparator();
+        logWriter.append(logEntry);
+    }
 
-        String logEntry = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " - " + msg
-                + System.lineSeparator();
-        ByteBuffer buffer = ByteBuffer.wrap(logEntry.getBytes());
-        System.out.println("Attempting asynchronous write to file");
-        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(logFilePath, StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE)) {
-            channel.write(buffer, channel.size(), null, new CompletionHandler<Integer, Void>() {
-                @Override
-                public void completed(Integer result, Void attachment) {
-                    System.out.println("Asynchronous write completed successfully");
-                    System.out.println(logEntry);
-                }
+    /**
+     * Writes queued log entries in batches through one AsynchronousFileChannel
+     * that stays open for the life of the program. The writer thread waits for
+     * the first entry, takes everything else that is queued with it, and appends
+     * the whole batch with a single write. A shutdown hook flushes whatever is
+     * still queued.
+     */
+    private static final class LogWriter extends Thread {
+        private static final int QUEUE_CAPACITY = 64 * 1024;
+        private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+        private final Path path;
+        private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean closing = false;
+
+        LogWriter(Path path) {
+            super("backup-log-writer");
+            this.path = path;
+            setDaemon(true);
+        }
+
+        void append(String logEntry) {
+            if (!queue.offer(logEntry))
+                dropped.incrementAndGet();
+        }
 
-                @Override
-                public void failed(Throwable exc, Void attachment) {
-                    System.out.println("Asynchronous write failed: " + exc.getMessage());
+        @Override
+        public void run() {
+            List<String> batch = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE)) {
+                long position = channel.size();
+                while (!closing || !queue.isEmpty()) {
+                    String first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0)
+                        batch.add(LocalDateTime.now().format(LOG_TIMESTAMP_FORMAT) + " - " + lost
+                                + " log entries were dropped because the log writer fell behind"
+                                + System.lineSeparator());
+                    StringBuilder text = new StringBuilder();
+                    for (String logEntry : batch)
+                        text.append(logEntry);
+                    position = write(channel, position, buffer, text.toString().getBytes());
+                    System.out.print(text);
+                    batch.clear();
                 }
-            });
-            // Wait for the asynchronous write to complete
-            Thread.sleep(500);
-        } catch (Exception e) {
-            System.out.println("Error occurred while opening channel: " + e.getMessage());
+                channel.force(false);
+            } catch (Exception e) {
+                System.out.println("The log writer failed: " + e.getMessage());
+            }
+        }
+
+        private static long write(AsynchronousFileChannel channel, long position, ByteBuffer buffer, byte[] bytes)
+                throws InterruptedException, ExecutionException {
+            for (int offset = 0; offset < bytes.length;) {
+                int length = Math.min(buffer.capacity(), bytes.length - offset);
+                buffer.clear().put(bytes, offset, length).flip();
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position).get();
+                offset += length;
+            }
+            return position;
+        }
+
+        /**
+         * Writes out everything queued so far and stops the writer.
+         */
+        void close() {
+            closing = true;
+            try {
+                join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -1,19 +1,50 @@
+import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiPredicate;
+import java.util.regex.PatternSyntaxException;
 
 public class DirectoryFileFinderAndTruncator {
+    // Directory listings wait on the file system, so more walkers than cores pay off on network shares
+    private static final int WALKER_COUNT = Integer.getInteger("truncator.walkers",
+            Math.max(8, Runtime.getRuntime().availableProcessors()));
+    private static final int TRUNCATION_WORKER_COUNT = Integer.getInteger("truncator.workers", 4);
+    private static final int TRUNCATION_QUEUE_CAPACITY = 1024;
+
     public static void main (String[] args){
-        if(args.length != 2){
-            System.out.println("Usage: java DirectoryFileFinderAndTruncator <directory_path> <file_extension>");
+        boolean dryRun = args.length > 0 && args[0].equals("--dry-run");
+        if(dryRun){
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if(args.length < 2){
+            System.out.println("Usage: java DirectoryFileFinderAndTruncator [--dry-run] <directory_path> <pattern>...");
+            System.out.println("A pattern is a file extension such as .log, glob:<pattern> or regex:<pattern>.");
             return;
         } else {
             Path directoryPath = Paths.get(args[0]);
-            String fileExtension = args[1];
+            List<String> patterns = Arrays.asList(args).subList(1, args.length);
 
             if(!Files.exists(directoryPath)){
                 System.out.println("Directory does not exist.");
@@ -23,31 +54,278 @@ public class DirectoryFileFinderAndTruncator {
                 System.out.println("Provided path is not a directory.");
                 return;
             }
-            if(!fileExtension.startsWith(".")){
-                System.out.println("Invalid file extension.");
+            PatternSet patternSet;
+            try {
+                patternSet = PatternSet.compile(directoryPath, patterns);
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Invalid pattern: " + ex.getMessage());
                 return;
             }
-            if(Files.exists(directoryPath) && Files.isDirectory(directoryPath) && fileExtension.startsWith(".")){
+            if(Files.exists(directoryPath) && Files.isDirectory(directoryPath)){
                 BiPredicate<Path, BasicFileAttributes> fileMatcher = (path, attrs) -> 
-                    attrs.isRegularFile() && path.getFileName().toString().endsWith(fileExtension) && attrs.size() > 0;
+                    attrs.isRegularFile() && attrs.size() > 0 && patternSet.matches(path);
+                TruncationRun run = new TruncationRun(fileMatcher, dryRun);
                 try {
-                    Files.find(directoryPath, Integer.MAX_VALUE, fileMatcher)
-                        .forEach(path -> {
-                            try (FileChannel currentChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
-                                currentChannel.truncate(0L);
-                                System.out.println("Truncated file: " + path.getFileName());
-                            } catch (Exception ex) {
-                                System.out.println("Error occurred while truncating file " + path.getFileName() + ": " + ex.getMessage());
-                                ex.printStackTrace();
-                                return;
-                            }
-                        });
+                    run.execute(directoryPath);
                 } catch (Exception ex) {
                     System.out.println("Error occured while searching for files: " + ex.getMessage());
                     return;
                 }
+                if(dryRun){
+                    run.printPlan();
+                }
+                run.printSummary();
+            }
+        }
+    }
+
+    /**
+     * All patterns of a run compiled into one matcher, so a single walk serves
+     * them all and each file is tested once. Extensions go into a trie of
+     * reversed suffixes that is walked back from the end of the file name, so
+     * the cost does not grow with the number of extensions. Regex patterns are
+     * joined into one alternation, except those that refer to their own groups:
+     * joining renumbers the groups, so a regex with backreferences or named
+     * groups keeps a PathMatcher of its own, as does each glob. Glob and
+     * regex patterns that contain a '/' are matched against the path relative
+     * to the directory, the others against the file name.
+     */
+    private static final class PatternSet {
+        private final Path root;
+        private final SuffixNode extensions = new SuffixNode();
+        private final List<PathMatcher> nameMatchers = new ArrayList<>();
+        private final List<PathMatcher> pathMatchers = new ArrayList<>();
+
+        private static final class SuffixNode {
+            final Map<Character, SuffixNode> children = new HashMap<>();
+            boolean terminal;
+        }
+
+        private PatternSet(Path root) {
+            this.root = root;
+        }
+
+        static PatternSet compile(Path root, List<String> patterns) {
+            PatternSet set = new PatternSet(root);
+            FileSystem fileSystem = root.getFileSystem();
+            List<String> nameRegexes = new ArrayList<>();
+            List<String> pathRegexes = new ArrayList<>();
+            for (String pattern : patterns) {
+                if (pattern.startsWith(".") && pattern.length() > 1) {
+                    set.addExtension(pattern);
+                } else if (pattern.startsWith("regex:") && pattern.length() > 6) {
+                    String regex = pattern.substring(6);
+                    if (refersToGroups(regex)) {
+                        try {
+                            (regex.contains("/") ? set.pathMatchers : set.nameMatchers)
+                                    .add(fileSystem.getPathMatcher(pattern));
+                        } catch (PatternSyntaxException ex) {
+                            throw new IllegalArgumentException(pattern + " (" + ex.getDescription() + ")");
+                        }
+                    } else {
+                        (regex.contains("/") ? pathRegexes : nameRegexes).add("(?:" + regex + ")");
+                    }
+                } else if (pattern.startsWith("glob:") && pattern.length() > 5) {
+                    try {
+                        (pattern.contains("/") ? set.pathMatchers : set.nameMatchers)
+                                .add(fileSystem.getPathMatcher(pattern));
+                    } catch (PatternSyntaxException ex) {
+                        throw new IllegalArgumentException(pattern + " (" + ex.getDescription() + ")");
+                    }
+                } else {
+                    throw new IllegalArgumentException(
+                            pattern + " (use .<extension>, glob:<pattern> or regex:<pattern>)");
+                }
+            }
+            try {
+                if (!nameRegexes.isEmpty())
+                    set.nameMatchers.add(fileSystem.getPathMatcher("regex:" + String.join("|", nameRegexes)));
+                if (!pathRegexes.isEmpty())
+                    set.pathMatchers.add(fileSystem.getPathMatcher("regex:" + String.join("|", pathRegexes)));
+            } catch (PatternSyntaxException ex) {
+                throw new IllegalArgumentException(ex.getPattern() + " (" + ex.getDescription() + ")");
+            }
+            return set;
+        }
+
+        /**
+         * Whether a regex has a backreference (\1, \k<name>) or a named group,
+         * either of which breaks once the regex is part of a larger one.
+         */
+        private static boolean refersToGroups(String regex) {
+            for (int i = 0; i < regex.length() - 1; i++) {
+                char next = regex.charAt(i + 1);
+                if (regex.charAt(i) == '\\') {
+                    if ((next >= '1' && next <= '9') || next == 'k')
+                        return true;
+                    i++;
+                } else if (regex.startsWith("(?<", i) && i + 3 < regex.length()
+                        && Character.isLetter(regex.charAt(i + 3))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void addExtension(String extension) {
+            SuffixNode node = extensions;
+            for (int i = extension.length() - 1; i >= 0; i--)
+                node = node.children.computeIfAbsent(extension.charAt(i), c -> new SuffixNode());
+            node.terminal = true;
+        }
+
+        private boolean hasExtension(String fileName) {
+            SuffixNode node = extensions;
+            for (int i = fileName.length() - 1; i >= 0; i--) {
+                node = node.children.get(fileName.charAt(i));
+                if (node == null)
+                    return false;
+                if (node.terminal)
+                    return true;
+            }
+            return false;
+        }
+
+        boolean matches(Path path) {
+            Path fileName = path.getFileName();
+            if (hasExtension(fileName.toString()))
+                return true;
+            for (PathMatcher matcher : nameMatchers)
+                if (matcher.matches(fileName))
+                    return true;
+            if (!pathMatchers.isEmpty()) {
+                Path relative = root.relativize(path);
+                for (PathMatcher matcher : pathMatchers)
+                    if (matcher.matches(relative))
+                        return true;
             }
+            return false;
         }
     }
 
+    /**
+     * One search-and-truncate pass over a tree. The tree is walked by a fork/join
+     * pool, one task per directory, so sibling subtrees are listed in parallel.
+     * Every entry is stat'ed exactly once, and those attributes decide both
+     * whether to descend and whether the file matches. Matches are handed to a
+     * small pool of truncation workers through a bounded queue; when the queue is
+     * full the walker truncates the file itself, which keeps the walk from
+     * running arbitrarily far ahead. A dry run truncates nothing and collects
+     * the matches, with the sizes from the walk, into a plan instead.
+     */
+    private static final class TruncationRun {
+        private final BiPredicate<Path, BasicFileAttributes> fileMatcher;
+        private final boolean dryRun;
+        private final ConcurrentLinkedQueue<PlannedTruncation> plan = new ConcurrentLinkedQueue<>();
+        private final LongAdder directoriesScanned = new LongAdder();
+        private final LongAdder filesScanned = new LongAdder();
+        private final LongAdder filesTruncated = new LongAdder();
+        private final LongAdder bytesReclaimed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private long elapsedMillis;
+
+        private record PlannedTruncation(Path path, long size) {
+        }
+
+        TruncationRun(BiPredicate<Path, BasicFileAttributes> fileMatcher, boolean dryRun) {
+            this.fileMatcher = fileMatcher;
+            this.dryRun = dryRun;
+        }
+
+        void execute(Path root) throws InterruptedException {
+            long start = System.nanoTime();
+            ThreadPoolExecutor truncators = new ThreadPoolExecutor(TRUNCATION_WORKER_COUNT, TRUNCATION_WORKER_COUNT,
+                    0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(TRUNCATION_QUEUE_CAPACITY),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            ForkJoinPool walkers = new ForkJoinPool(WALKER_COUNT);
+            try {
+                walkers.invoke(new WalkTask(root, truncators));
+            } finally {
+                walkers.shutdown();
+                truncators.shutdown();
+                truncators.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            }
+        }
+
+        private void truncate(Path path) {
+            try (FileChannel currentChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                long size = currentChannel.size();
+                currentChannel.truncate(0L);
+                filesTruncated.increment();
+                bytesReclaimed.add(size);
+                System.out.println("Truncated file: " + path.getFileName());
+            } catch (Exception ex) {
+                errors.increment();
+                System.out.println("Error occurred while truncating file " + path.getFileName() + ": " + ex.getMessage());
+            }
+        }
+
+        private void plan(Path path, long size) {
+            plan.add(new PlannedTruncation(path, size));
+            filesTruncated.increment();
+            bytesReclaimed.add(size);
+        }
+
+        void printPlan() {
+            List<PlannedTruncation> planned = new ArrayList<>(plan);
+            planned.sort(Comparator.comparing(PlannedTruncation::path));
+            for (PlannedTruncation truncation : planned)
+                System.out.println("Would truncate: " + truncation.path() + " (" + truncation.size() + " bytes)");
+        }
+
+        void printSummary() {
+            System.out.println("Scanned " + filesScanned.sum() + " files in " + directoriesScanned.sum()
+                    + " directories, " + (dryRun ? "would truncate " : "truncated ") + filesTruncated.sum()
+                    + " files, " + (dryRun ? "reclaiming " : "reclaimed ") + bytesReclaimed.sum() + " bytes in "
+                    + elapsedMillis + " ms" + (errors.sum() > 0 ? " (" + errors.sum() + " errors)" : ""));
+        }
+
+        private final class WalkTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path directory;
+            private final ThreadPoolExecutor truncators;
+
+            WalkTask(Path directory, ThreadPoolExecutor truncators) {
+                this.directory = directory;
+                this.truncators = truncators;
+            }
+
+            @Override
+            protected void compute() {
+                directoriesScanned.increment();
+                List<WalkTask> subdirectories = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException ex) {
+                            // Deleted since the listing
+                            continue;
+                        } catch (IOException ex) {
+                            errors.increment();
+                            System.out.println("Error occured while checking " + entry + ": " + ex.getMessage());
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            subdirectories.add(new WalkTask(entry, truncators));
+                        } else if (attrs.isRegularFile()) {
+                            filesScanned.increment();
+                            if (!fileMatcher.test(entry, attrs))
+                                continue;
+                            if (dryRun)
+                                plan(entry, attrs.size());
+                            else
+                                truncators.execute(() -> truncate(entry));
+                        }
+                    }
+                } catch (IOException ex) {
+                    errors.increment();
+                    System.out.println("Error occured while searching " + directory + ": " + ex.getMessage());
+                }
+                invokeAll(subdirectories);
+            }
+        }
+    }
 }
@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * NetworkingBenchmark measures the Networking programs over loopback without any
+ * user interaction. Every scenario starts its server inside this JVM on an
+ * ephemeral port, drives it with simulated clients and records messages per
+ * second, latency percentiles, the allocation rate and GC pauses. The results are
+ * printed as a table and written as JSON, so runs can be compared by a script.
+ *
+ * Usage: java NetworkingBenchmark [clients] [messages_per_client] [report_file]
+ */
+public class NetworkingBenchmark {
+    private static final int DEFAULT_CLIENTS = 100;
+    private static final int DEFAULT_MESSAGES = 1000;
+    private static final String DEFAULT_REPORT = "benchmark_report.json";
+    // Every hub message is delivered to every other peer, so the work grows with the square of the peers
+    private static final int MAX_HUB_PEERS = 20;
+    private static final long TIMEOUT_MILLIS = 120_000;
+
+    // Same bytes as PeerToPeerCommandLineMessaging puts on the wire
+    private static final byte[] HUB_HANDSHAKE = "P2PCLIChv2".getBytes(StandardCharsets.UTF_8);
+    private static final byte HUB_MESSAGESIGNAL = '1';
+
+    /**
+     * The measurements of one scenario. Latencies are in microseconds; the kind says
+     * what they measure, "one-way" from sending a message to its receiver reading it
+     * or "call" for how long a logging call keeps the caller busy.
+     */
+    private record Result(String scenario, int clients, long messages, double seconds, double[] latencyMicros,
+            String latencyKind, long allocatedBytes, long gcCount, long gcPauseMillis, long maxGcPauseMillis) {
+
+        double messagesPerSecond() {
+            return messages / seconds;
+        }
+
+        double allocationMegabytesPerSecond() {
+            return allocatedBytes / seconds / (1024 * 1024);
+        }
+    }
+
+    public static void main(String[] args) {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGES;
+        Path report = Paths.get(args.length > 2 ? args[2] : DEFAULT_REPORT);
+        if (clients <= 0 || messages <= 0) {
+            System.out.println("Usage: java NetworkingBenchmark [clients] [messages_per_client] [report_file]");
+            return;
+        }
+
+        System.out.printf("Benchmark: %d clients x %d messages%n", clients, messages);
+        List<Result> results = new ArrayList<>();
+        try (GcMonitor gc = new GcMonitor()) {
+            // A short warm-up so the first scenario is not measured while the JIT is still compiling
+            loggingServer("warmup", "selector", Math.min(clients, 10), Math.min(messages, 1000), gc);
+            results.add(loggingServer("logging-selector", "selector", clients, messages, gc));
+            results.add(loggingServer("logging-threads", "threads", clients, messages, gc));
+            results.add(loggingClient(clients, messages, gc));
+            results.add(hub(Math.min(clients, MAX_HUB_PEERS), messages, gc));
+        } catch (Exception e) {
+            System.out.println("The benchmark failed: " + e.getMessage());
+            return;
+        }
+
+        System.out.printf("%-17s %8s %10s %12s %8s %9s %9s %9s %10s %5s %8s%n", "scenario", "clients", "messages",
+                "msgs/s", "latency", "p50 us", "p99 us", "p999 us", "alloc MB/s", "gcs", "gc ms");
+        for (Result result : results)
+            System.out.printf(Locale.ROOT, "%-17s %8d %10d %12.0f %8s %9.0f %9.0f %9.0f %10.1f %5d %8d%n",
+                    result.scenario, result.clients, result.messages, result.messagesPerSecond(), result.latencyKind,
+                    result.latencyMicros[0], result.latencyMicros[1], result.latencyMicros[2],
+                    result.allocationMegabytesPerSecond(), result.gcCount, result.gcPauseMillis);
+        try {
+            Files.writeString(report, toJson(clients, messages, results));
+            System.out.println("Report written to " + report.toAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("Could not write the report: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Framed connections straight to RemoteLoggingServiceServer. Latency is one-way,
+     * from the sender writing a frame to the server decoding it, timed by the
+     * nanosecond stamp sendLoad() puts in each message.
+     */
+    private static Result loggingServer(String scenario, String mode, int clients, int messages, GcMonitor gc)
+            throws Exception {
+        List<SocketChannel> channels = new ArrayList<>();
+        try (RemoteLoggingServiceServer.EmbeddedServer server = new RemoteLoggingServiceServer.EmbeddedServer(mode)) {
+            try {
+                for (int i = 0; i < clients; i++)
+                    channels.add(server.connect());
+                server.awaitConnections(clients, 10_000);
+
+                Measurement measurement = new Measurement(gc);
+                int senders = Math.min(clients, Runtime.getRuntime().availableProcessors());
+                List<Thread> senderThreads = new ArrayList<>();
+                for (int s = 0; s < senders; s++) {
+                    List<SocketChannel> slice = new ArrayList<>();
+                    for (int i = s; i < channels.size(); i += senders)
+                        slice.add(channels.get(i));
+                    Thread sender = new Thread(() -> RemoteLoggingServiceServer.sendLoad(slice, messages),
+                            "benchmark-sender");
+                    sender.start();
+                    senderThreads.add(sender);
+                }
+                for (Thread sender : senderThreads)
+                    sender.join();
+                server.awaitEntries((long) clients * messages, TIMEOUT_MILLIS);
+
+                double[] latency = { server.latencyPercentileMicros(50), server.latencyPercentileMicros(99),
+                        server.latencyPercentileMicros(99.9) };
+                return measurement.finish(scenario, clients, server.entriesWritten(), latency, "one-way");
+            } finally {
+                for (SocketChannel channel : channels)
+                    channel.close();
+            }
+        }
+    }
+
+    /**
+     * RemoteLoggingServiceClient instances logging to the selector server. Latency
+     * is how long log() keeps the caller busy; throughput counts entries the
+     * server has written.
+     */
+    private static Result loggingClient(int clients, int messages, GcMonitor gc) throws Exception {
+        List<RemoteLoggingServiceClient> appenders = new ArrayList<>();
+        try (RemoteLoggingServiceServer.EmbeddedServer server =
+                new RemoteLoggingServiceServer.EmbeddedServer("selector")) {
+            try {
+                InetSocketAddress address = server.address();
+                for (int i = 0; i < clients; i++)
+                    appenders.add(new RemoteLoggingServiceClient(address.getHostString(), address.getPort(),
+                            64 * 1024, RemoteLoggingServiceClient.OverflowPolicy.BLOCK, null));
+
+                Measurement measurement = new Measurement(gc);
+                int callers = Math.min(clients, Runtime.getRuntime().availableProcessors());
+                long[][] samples = new long[callers][];
+                List<Thread> callerThreads = new ArrayList<>();
+                for (int c = 0; c < callers; c++) {
+                    List<RemoteLoggingServiceClient> slice = new ArrayList<>();
+                    for (int i = c; i < appenders.size(); i += callers)
+                        slice.add(appenders.get(i));
+                    long[] callerSamples = new long[slice.size() * messages];
+                    samples[c] = callerSamples;
+                    Thread caller = new Thread(() -> {
+                        int sample = 0;
+                        for (int round = 0; round < messages; round++) {
+                            for (RemoteLoggingServiceClient appender : slice) {
+                                long start = System.nanoTime();
+                                appender.log("INFO", "benchmark entry " + round);
+                                callerSamples[sample++] = System.nanoTime() - start;
+                            }
+                        }
+                    }, "benchmark-caller");
+                    caller.start();
+                    callerThreads.add(caller);
+                }
+                for (Thread caller : callerThreads)
+                    caller.join();
+                server.awaitEntries((long) clients * messages, TIMEOUT_MILLIS);
+                return measurement.finish("logging-client", clients, server.entriesWritten(),
+                        percentilesMicros(samples), "call");
+            } finally {
+                for (RemoteLoggingServiceClient appender : appenders)
+                    appender.close();
+            }
+        }
+    }
+
+    /**
+     * Peers chatting through the PeerToPeerCommandLineMessaging hub. Every message
+     * carries its send time, and latency is one-way, from sending it until another
+     * peer has read it.
+     */
+    private static Result hub(int peers, int messages, GcMonitor gc) throws Exception {
+        if (peers < 2)
+            throw new IllegalArgumentException("The hub scenario needs at least two clients");
+        long expected = (long) peers * (peers - 1) * messages;
+        // Not a try-with-resources resource: the peers' cleanup closes it early to stop the hub
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress("localhost", 0), 1024);
+            InetSocketAddress address = (InetSocketAddress) serverChannel.getLocalAddress();
+            Thread hub = new Thread(() -> {
+                try {
+                    PeerToPeerCommandLineMessaging.runHub(serverChannel);
+                } catch (IOException e) {
+                    System.out.println("The hub failed: " + e.getMessage());
+                }
+            }, "benchmark-hub");
+            hub.start();
+
+            List<SocketChannel> channels = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            LongAdder delivered = new LongAdder();
+            AtomicLong firstPeerJoinNotices = new AtomicLong();
+            long[][] samples = new long[peers][];
+            try {
+                for (int i = 0; i < peers; i++) {
+                    SocketChannel channel = SocketChannel.open(address);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    writeFully(channel, ByteBuffer.wrap(HUB_HANDSHAKE));
+                    channels.add(channel);
+                    long[] peerSamples = new long[(peers - 1) * messages];
+                    samples[i] = peerSamples;
+                    AtomicLong joinNotices = i == 0 ? firstPeerJoinNotices : new AtomicLong();
+                    Thread reader = new Thread(() -> readHub(channel, peerSamples, delivered, joinNotices),
+                            "benchmark-peer");
+                    reader.start();
+                    readers.add(reader);
+                }
+                // The first peer hears every later peer join, after which all of them take part in broadcasts
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (firstPeerJoinNotices.get() < peers - 1 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(10);
+
+                Measurement measurement = new Measurement(gc);
+                List<Thread> senders = new ArrayList<>();
+                for (SocketChannel channel : channels) {
+                    Thread sender = new Thread(() -> sendHub(channel, messages), "benchmark-peer-sender");
+                    sender.start();
+                    senders.add(sender);
+                }
+                for (Thread sender : senders)
+                    sender.join();
+                deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (delivered.sum() < expected && System.currentTimeMillis() < deadline)
+                    Thread.sleep(1);
+                return measurement.finish("p2p-hub", peers, delivered.sum(), percentilesMicros(samples), "one-way");
+            } finally {
+                for (SocketChannel channel : channels)
+                    channel.close();
+                serverChannel.close();
+                for (Thread reader : readers)
+                    reader.join();
+                hub.join();
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    private static void sendHub(SocketChannel channel, int messages) {
+        ByteBuffer frame = ByteBuffer.allocate(256);
+        try {
+            for (int i = 0; i < messages; i++) {
+                byte[] payload = ("benchmark " + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+                frame.clear().put(HUB_MESSAGESIGNAL).putInt(payload.length).put(payload).flip();
+                writeFully(channel, frame);
+            }
+        } catch (IOException e) {
+            System.out.println("A benchmark peer failed to send: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads frames from the hub until the channel closes. Broadcasts arrive as
+     * "[sender] benchmark <nanoTime>", join notices as "* <peer> joined the chat".
+     */
+    private static void readHub(SocketChannel channel, long[] samples, LongAdder delivered, AtomicLong joinNotices) {
+        ByteBuffer header = ByteBuffer.allocate(1 + Integer.BYTES);
+        ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+        int sample = 0;
+        try {
+            if (!readFully(channel, ByteBuffer.allocate(HUB_HANDSHAKE.length)))
+                return;
+            while (readFully(channel, header.clear())) {
+                byte type = header.get(0);
+                int length = header.getInt(1);
+                if (length > payload.capacity())
+                    payload = ByteBuffer.allocate(length);
+                if (!readFully(channel, payload.clear().limit(length)))
+                    return;
+                if (type != HUB_MESSAGESIGNAL)
+                    continue;
+                long received = System.nanoTime();
+                String text = new String(payload.array(), 0, length, StandardCharsets.UTF_8);
+                int marker = text.lastIndexOf("] benchmark ");
+                if (marker >= 0) {
+                    long sent = Long.parseLong(text.substring(marker + "] benchmark ".length()));
+                    if (sample < samples.length)
+                        samples[sample++] = received - sent;
+                    delivered.increment();
+                } else if (text.startsWith("* ") && text.endsWith(" joined the chat")) {
+                    joinNotices.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the benchmark once it is done
+        } finally {
+            if (sample < samples.length)
+                Arrays.fill(samples, sample, samples.length, -1);
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                return false;
+        buffer.flip();
+        return true;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * p50, p99 and p999 of nanosecond samples in microseconds. Negative samples
+     * mark slots that were never filled and are left out.
+     */
+    private static double[] percentilesMicros(long[][] samples) {
+        long[] all = Arrays.stream(samples).flatMapToLong(Arrays::stream).filter(sample -> sample >= 0).toArray();
+        if (all.length == 0)
+            return new double[] { 0, 0, 0 };
+        Arrays.sort(all);
+        double[] percentiles = { 50, 99, 99.9 };
+        double[] micros = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.min(all.length - 1, Math.ceil(all.length * percentiles[i] / 100.0) - 1);
+            micros[i] = all[Math.max(index, 0)] / 1000.0;
+        }
+        return micros;
+    }
+
+    /**
+     * Wall time, allocated bytes and GC activity from construction to finish().
+     * JDK 17 has no total of the bytes allocated by all threads, including those
+     * that already ended, so allocation is estimated as the growth of the heap plus
+     * everything collectors reclaimed in between.
+     */
+    private static final class Measurement {
+        private final GcMonitor gc;
+        private final long startNanos = System.nanoTime();
+        private final long[] startGc;
+        private final long startHeapUsed;
+
+        Measurement(GcMonitor gc) {
+            this.gc = gc;
+            this.startGc = gc.snapshot();
+            this.startHeapUsed = heapUsed();
+        }
+
+        Result finish(String scenario, int clients, long messages, double[] latencyMicros, String latencyKind) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long heapUsed = heapUsed();
+            long[] endGc = gc.snapshot();
+            long allocated = heapUsed - startHeapUsed + endGc[2] - startGc[2];
+            return new Result(scenario, clients, messages, seconds, latencyMicros, latencyKind, allocated,
+                    endGc[0] - startGc[0], endGc[1] - startGc[1], endGc[3]);
+        }
+
+        private static long heapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    /**
+     * Counts collections, their pause time and the bytes they reclaimed from the
+     * collectors' notifications, which also give the longest single pause.
+     */
+    private static final class GcMonitor implements AutoCloseable {
+        private final AtomicLong collections = new AtomicLong();
+        private final AtomicLong pauseMillis = new AtomicLong();
+        private final AtomicLong maxPauseMillis = new AtomicLong();
+        private final AtomicLong reclaimedBytes = new AtomicLong();
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+        private final NotificationListener listener = (notification, handback) -> {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                return;
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            GcInfo gcInfo = info.getGcInfo();
+            long before = gcInfo.getMemoryUsageBeforeGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+            long after = gcInfo.getMemoryUsageAfterGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+            reclaimedBytes.addAndGet(Math.max(0, before - after));
+            // Concurrent cycles run beside the application and are not pauses
+            if (info.getGcAction().startsWith("end of") && !info.getGcName().contains("Cycles")
+                    && !info.getGcName().contains("Concurrent")) {
+                collections.incrementAndGet();
+                pauseMillis.addAndGet(gcInfo.getDuration());
+                maxPauseMillis.accumulateAndGet(gcInfo.getDuration(), Math::max);
+            }
+        };
+
+        GcMonitor() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter emitter) {
+                    emitter.addNotificationListener(listener, null, null);
+                    emitters.add(emitter);
+                }
+            }
+        }
+
+        /**
+         * Collections, pause milliseconds, reclaimed bytes and the longest pause
+         * since the previous snapshot.
+         */
+        long[] snapshot() {
+            return new long[] { collections.get(), pauseMillis.get(), reclaimedBytes.get(),
+                    maxPauseMillis.getAndSet(0) };
+        }
+
+        @Override
+        public void close() {
+            for (NotificationEmitter emitter : emitters) {
+                try {
+                    emitter.removeNotificationListener(listener);
+                } catch (Exception e) {
+                    // Not registered, nothing to remove
+                }
+            }
+        }
+    }
+
+    private static String toJson(int clients, int messages, List<Result> results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"java_version\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"clients\": ").append(clients).append(",\n");
+        json.append("  \"messages_per_client\": ").append(messages).append(",\n");
+        json.append("  \"scenarios\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT, """
+                        {
+                          "scenario": "%s",
+                          "clients": %d,
+                          "messages": %d,
+                          "seconds": %.3f,
+                          "messages_per_second": %.1f,
+                          "latency_kind": "%s",
+                          "latency_p50_us": %.1f,
+                          "latency_p99_us": %.1f,
+                          "latency_p999_us": %.1f,
+                          "allocated_bytes": %d,
+                          "allocation_mb_per_second": %.1f,
+                          "gc_count": %d,
+                          "gc_pause_ms": %d,
+                          "gc_max_pause_ms": %d
+                        }""", result.scenario, result.clients, result.messages, result.seconds,
+                    result.messagesPerSecond(), result.latencyKind, result.latencyMicros[0], result.latencyMicros[1],
+                    result.latencyMicros[2], result.allocatedBytes,
+                    result.allocationMegabytesPerSecond(), result.gcCount, result.gcPauseMillis,
+                    result.maxGcPauseMillis).indent(4).stripTrailing());
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+}
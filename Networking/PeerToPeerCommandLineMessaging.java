@@ -1,24 +1,334 @@
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * PeerToPeerCommandLineMessaging lets two instances chat over TCP, or many
+ * instances chat through a hub.
+ * After the HANDSHAKE everything travels as frames: a one byte type, an int
+ * payload length and the payload. Frames are reassembled from however TCP splits
+ * or coalesces the stream, so messages are no longer limited to one 1024 byte
+ * read. Typing "/send <file>" streams a file to the other side in chunks.
+ */
 public class PeerToPeerCommandLineMessaging {
+    // Was "P2PCLIChat" before framing; same length, so older versions fail the handshake cleanly
+    private static final String HANDSHAKE = "P2PCLIChv2";
+    private static final byte MESSAGESIGNAL = '1';
+    private static final byte EXITSIGNAL = '0';
+    private static final byte FILESTARTSIGNAL = 'F';
+    private static final byte FILECHUNKSIGNAL = 'C';
+    private static final byte FILEENDSIGNAL = 'E';
+    private static final int PORT = 1234;
+    private static final int FRAME_HEADER_SIZE = 1 + Integer.BYTES;
+    private static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    // A hub disconnects peers that fall this far behind on chat instead of buffering without limit
+    private static final int MAX_QUEUED_BYTES_PER_PEER = 1024 * 1024;
+    // A relayed file is not read from its sender while a receiver has more than the
+    // high-water mark queued, and reading resumes once all of them are below the low one
+    private static final int FILE_RELAY_HIGH_WATER = 512 * 1024;
+    private static final int FILE_RELAY_LOW_WATER = 128 * 1024;
+
+    /**
+     * A peer connected to the hub. Outgoing frames wait in the peer's own outbox,
+     * so a peer that reads slowly only delays itself.
+     */
+    private static class HubPeer {
+        final String name;
+        final ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE.getBytes(StandardCharsets.UTF_8).length);
+        final FrameReader frames = new FrameReader();
+        final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>();
+        long queuedBytes = 0;
+        boolean joined = false;
+        // Waiting to relay a file or for the receivers to catch up, the peer is not read meanwhile
+        boolean paused = false;
+
+        HubPeer(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Keeps released receive buffers by power-of-two capacity, so a reader that has
+     * to grow for a large frame reuses an earlier buffer instead of allocating.
+     */
+    private static final class BufferPool {
+        private static final int MAX_POOLED_PER_SIZE = 4;
+        private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> free =
+                new ConcurrentHashMap<>();
+
+        static ByteBuffer acquire(int minimumCapacity) {
+            int capacity = Math.max(1024, Integer.highestOneBit(Math.max(minimumCapacity - 1, 1)) << 1);
+            ConcurrentLinkedQueue<ByteBuffer> pooled = free.get(capacity);
+            ByteBuffer buffer = pooled == null ? null : pooled.poll();
+            return buffer == null ? ByteBuffer.allocate(capacity) : buffer.clear();
+        }
+
+        static void release(ByteBuffer buffer) {
+            ConcurrentLinkedQueue<ByteBuffer> pooled = free.computeIfAbsent(buffer.capacity(),
+                    capacity -> new ConcurrentLinkedQueue<>());
+            if (pooled.size() < MAX_POOLED_PER_SIZE)
+                pooled.offer(buffer);
+        }
+    }
+
+    /**
+     * Lets one peer at a time relay a file through the hub. A receiver writes one
+     * file at a time, so the chunks of two interleaved transfers would end up in
+     * each other's file. A peer that starts a file while another one is being
+     * relayed is paused with its start frame unread, and no longer read until the
+     * other transfer has ended, which holds it back through TCP. The sender being
+     * relayed is paused the same way while the receivers fall behind, so a file
+     * moves at the pace of the slowest receiver rather than piling up in the hub.
+     * Only used from the hub's selector thread.
+     */
+    private static final class FileRelay {
+        private SelectionKey sender;
+        private boolean throttled = false;
+        private final ArrayDeque<SelectionKey> waiting = new ArrayDeque<>();
+
+        /**
+         * Returns true if the peer may relay its file now, otherwise pauses it.
+         */
+        boolean start(SelectionKey key) {
+            if (sender != null && sender != key && sender.isValid()) {
+                pause(key);
+                waiting.add(key);
+                return false;
+            }
+            sender = key;
+            return true;
+        }
+
+        /**
+         * Stops reading from the sender until the receivers have drained their outboxes.
+         */
+        void throttle(SelectionKey key) {
+            pause(key);
+            throttled = true;
+        }
+
+        void end(SelectionKey key) {
+            if (sender == key)
+                sender = null;
+        }
+
+        /**
+         * Returns the peer to read next: the throttled sender once every receiver is
+         * below the low-water mark, or else the next paused peer once no file is being
+         * relayed, including when the sender disconnected mid-transfer. Returns null
+         * if there is none.
+         */
+        SelectionKey resumeNext(Selector selector) {
+            if (sender != null && sender.isValid()) {
+                if (!throttled || largestBacklog(selector, sender) > FILE_RELAY_LOW_WATER)
+                    return null;
+                throttled = false;
+                resume(sender);
+                return sender;
+            }
+            sender = null;
+            throttled = false;
+            SelectionKey key;
+            while ((key = waiting.poll()) != null) {
+                if (!key.isValid())
+                    continue;
+                resume(key);
+                return key;
+            }
+            return null;
+        }
+
+        private static void pause(SelectionKey key) {
+            ((HubPeer) key.attachment()).paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private static void resume(SelectionKey key) {
+            ((HubPeer) key.attachment()).paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reassembles frames from a byte stream. Bytes are read into a pooled buffer
+     * that grows to fit the largest frame seen; the payload of the current frame is
+     * a view into that buffer and is only valid until the next read.
+     */
+    private static final class FrameReader {
+        private ByteBuffer buffer = BufferPool.acquire(1024);
+        private int start = 0;
+        private int current = 0;
+        byte type;
+        ByteBuffer payload;
+
+        /**
+         * Blocks until a whole frame is available. Returns false at end of stream.
+         */
+        boolean read(ReadableByteChannel channel) throws IOException {
+            while (!next()) {
+                if (fill(channel) < 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Reads whatever the channel has into the buffer.
+         */
+        int fill(ReadableByteChannel channel) throws IOException {
+            return channel.read(buffer);
+        }
+
+        /**
+         * Makes the next buffered frame current. Returns false if it has not fully
+         * arrived yet, after making sure there is room for the rest of it.
+         */
+        boolean next() throws IOException {
+            if (start == buffer.position()) {
+                buffer.clear();
+                start = 0;
+            }
+            int available = buffer.position() - start;
+            if (available < FRAME_HEADER_SIZE) {
+                ensureCapacity(FRAME_HEADER_SIZE);
+                return false;
+            }
+            int length = buffer.getInt(start + 1);
+            if (length < 0 || length > MAX_PAYLOAD_SIZE)
+                throw new IOException("Invalid frame length " + length);
+            if (available < FRAME_HEADER_SIZE + length) {
+                ensureCapacity(FRAME_HEADER_SIZE + length);
+                return false;
+            }
+            type = buffer.get(start);
+            payload = buffer.duplicate().limit(start + FRAME_HEADER_SIZE + length)
+                    .position(start + FRAME_HEADER_SIZE);
+            current = start;
+            start += FRAME_HEADER_SIZE + length;
+            return true;
+        }
+
+        /**
+         * Puts the current frame back, so the next call to next() returns it again.
+         */
+        void unread() {
+            start = current;
+        }
+
+        private void ensureCapacity(int frameSize) {
+            if (start > 0) {
+                buffer.flip().position(start);
+                buffer.compact();
+                start = 0;
+            }
+            if (buffer.capacity() < frameSize) {
+                ByteBuffer grown = BufferPool.acquire(frameSize);
+                grown.put(buffer.flip());
+                BufferPool.release(buffer);
+                buffer = grown;
+            }
+        }
+
+        void release() {
+            if (buffer.capacity() > 0)
+                BufferPool.release(buffer);
+            buffer = ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Applies incoming frames on a chat connection: decodes messages and writes
+     * incoming files to received_<name> in the working directory.
+     */
+    private static final class Receiver {
+        private FileChannel file;
+        private Path filePath;
+        private long fileBytes;
+        private String message;
+
+        /**
+         * Handles the current frame of the reader and returns its type, which tells
+         * the caller whether the other side has finished what it was sending.
+         */
+        byte handle(FrameReader frame) throws IOException {
+            ByteBuffer payload = frame.payload;
+            switch (frame.type) {
+                case MESSAGESIGNAL -> message = StandardCharsets.UTF_8.decode(payload).toString();
+                case FILESTARTSIGNAL -> {
+                    close();
+                    long size = payload.getLong();
+                    Path name = Paths.get(StandardCharsets.UTF_8.decode(payload).toString()).getFileName();
+                    filePath = Paths.get("received_" + (name == null ? "file" : name.toString()));
+                    file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                    fileBytes = 0;
+                    System.out.println("Receiving file " + filePath + " (" + size + " bytes)");
+                }
+                case FILECHUNKSIGNAL -> {
+                    if (file == null)
+                        throw new IOException("File data received without a file");
+                    fileBytes += payload.remaining();
+                    while (payload.hasRemaining())
+                        file.write(payload);
+                }
+                case FILEENDSIGNAL -> {
+                    if (file != null) {
+                        file.close();
+                        file = null;
+                        System.out.println("File received: " + filePath.toAbsolutePath() + " (" + fileBytes
+                                + " bytes)");
+                    }
+                }
+                case EXITSIGNAL -> close();
+                default -> {
+                    // Not part of the protocol, ignore it
+                }
+            }
+            return frame.type;
+        }
+
+        String message() {
+            return message;
+        }
+
+        void close() {
+            if (file == null)
+                return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("An error occured while closing " + filePath + ": " + e.getMessage());
+            }
+            file = null;
+        }
+    }
+
     public static void main(String[] args) {
-        ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
-        ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
+        // Full-duplex chat shows incoming messages while the user is typing
+        boolean fullDuplex = args.length > 0 && args[0].equals("--duplex");
         Scanner userInput = new Scanner(System.in);
-        String incomingMessage;
-        String outgoingMessage;
-        final String HANDSHAKE = "P2PCLIChat";
-        final String MESSAGESIGNAL = "1";
-        final String EXITSIGNAL = "0";
-        final int PORT = 1234;
 
         System.out.println("Welcome to the Peer to Peer Command Line Messaging");
-        System.out.println("Do you want to start as \n\t1. Server\n\t2. Client");
+        System.out.println(
+                "Do you want to start as \n\t1. Server\n\t2. Client\n\t3. Hub (relays chat between many clients)");
         System.out.println("Enter a number that corresponds to your choice");
         mainloop: while (true) {
             switch (userInput.nextLine()) {
@@ -32,84 +342,47 @@ public class PeerToPeerCommandLineMessaging {
                             SocketChannel socketChannel = serverChannel.accept();
                             if (socketChannel == null) {
                                 Thread.sleep(100);
-                            } else {
-                                socketChannel.write(
-                                        sendBuffer.clear().put(HANDSHAKE.getBytes(StandardCharsets.UTF_8)).flip());
-                                socketChannel.read(receiveBuffer);
-                                if (!StandardCharsets.UTF_8.decode(receiveBuffer.flip()).toString().equals(HANDSHAKE)) {
-                                    System.out.println("Connected program is not PeerToPeerCommandLineMessaging");
-                                    System.out.println("Disconnecting...");
-                                    socketChannel.close();
-                                    System.out.println("Disconnected");
-                                    System.out.println("Waiting for new connections...");
-                                    continue innerloop;
-                                }
-                                System.out.println("Connected...");
-                                System.out.println(
-                                        "Enter your message and hit enter. if you want to quit, simply type 'quit'");
+                                continue innerloop;
+                            }
+                            writeHandshake(socketChannel);
+                            if (!readHandshake(socketChannel)) {
+                                System.out.println("Connected program is not PeerToPeerCommandLineMessaging");
+                                System.out.println("Disconnecting...");
+                                socketChannel.close();
+                                System.out.println("Disconnected");
+                                System.out.println("Waiting for new connections...");
+                                continue innerloop;
+                            }
+                            System.out.println("Connected...");
+                            System.out.println(
+                                    "Enter your message and hit enter. if you want to quit, simply type 'quit'");
+                            System.out.println("To send a file, type '/send <file path>'");
+                            if (fullDuplex) {
+                                if (chatFullDuplex(socketChannel, userInput))
+                                    break mainloop;
+                                socketChannel.close();
+                                System.out.println("Waiting for new connections...");
+                                continue innerloop;
+                            }
+                            FrameReader frameReader = new FrameReader();
+                            Receiver receiver = new Receiver();
+                            try {
                                 while (true) {
-                                    outgoingMessageloop: while (true) {
-                                        System.out.print("SEND: ");
-                                        outgoingMessage = userInput.nextLine();
-                                        String messageData = MESSAGESIGNAL + outgoingMessage;
-                                        if (outgoingMessage.length() > 0) {
-                                            if (outgoingMessage.equalsIgnoreCase("quit")) {
-                                                sendBuffer.clear().put(EXITSIGNAL.getBytes(StandardCharsets.UTF_8))
-                                                        .flip();
-                                                while (sendBuffer.hasRemaining()) {
-                                                    socketChannel.write(sendBuffer);
-                                                }
-                                                System.out.println("Quitting...");
-                                                break mainloop;
-                                            } else if (messageData
-                                                    .getBytes(StandardCharsets.UTF_8).length > sendBuffer.capacity()) {
-                                                System.out.println("Message too long");
-                                                System.out.print("SEND: ");
-                                                break outgoingMessageloop;
-                                            } else {
-                                                sendBuffer.clear().put((messageData)
-                                                        .getBytes(StandardCharsets.UTF_8)).flip();
-                                                while (sendBuffer.hasRemaining()) {
-                                                    socketChannel.write(sendBuffer);
-                                                }
-                                                System.out.println();
-                                                break outgoingMessageloop;
-                                            }
-                                        } else {
-                                            System.out.println("Cannot send an empty message, try again");
-                                            continue outgoingMessageloop;
-                                        }
+                                    if (!sendTurn(socketChannel, userInput)) {
+                                        socketChannel.close();
+                                        break mainloop;
                                     }
                                     System.out.print("RECEIVE: ");
-                                    int bytesRead = socketChannel.read(receiveBuffer.clear());
-                                    if (bytesRead < 0) {
+                                    if (!receiveTurn(socketChannel, frameReader, receiver)) {
                                         System.out.println("Connection closed at the other end");
                                         socketChannel.close();
                                         System.out.println("Waiting for new connections...");
                                         continue innerloop;
-                                    } else {
-                                        receiveBuffer.flip();
-                                        incomingMessage = StandardCharsets.UTF_8.decode(receiveBuffer).toString();
-                                        receiveBuffer.clear();
-                                        if (!incomingMessage.isEmpty()) {
-                                            switch (incomingMessage.substring(0, 1)) {
-                                                case EXITSIGNAL -> {
-                                                    System.out.println("Connection closed at the other end");
-                                                    socketChannel.close();
-                                                    System.out.println("Waiting for new connections...");
-                                                    continue innerloop;
-                                                }
-                                                case MESSAGESIGNAL -> {
-                                                    System.out
-                                                            .print(incomingMessage.substring(1,
-                                                                    incomingMessage.length()));
-                                                    System.out.println();
-                                                }
-                                            }
-                                        }
                                     }
                                 }
-
+                            } finally {
+                                frameReader.release();
+                                receiver.close();
                             }
                         }
                     } catch (Exception e) {
@@ -120,8 +393,7 @@ public class PeerToPeerCommandLineMessaging {
                     try (SocketChannel socketChannel = SocketChannel.open()) {
                         socketChannel.connect(new InetSocketAddress("localhost", PORT));
                         socketChannel.finishConnect();
-                        socketChannel.read(receiveBuffer);
-                        if (!StandardCharsets.UTF_8.decode(receiveBuffer.flip()).toString().equals(HANDSHAKE)) {
+                        if (!readHandshake(socketChannel)) {
                             System.out.println("Connected program is not PeerToPeerCommandLineMessaging");
                             System.out.println("Disconnecting...");
                             socketChannel.close();
@@ -129,80 +401,473 @@ public class PeerToPeerCommandLineMessaging {
                             System.out.println("Quiting");
                             break mainloop;
                         }
-                        socketChannel.write(sendBuffer.clear().put(HANDSHAKE.getBytes(StandardCharsets.UTF_8)).flip());
+                        writeHandshake(socketChannel);
                         System.out.println("Connected...");
                         System.out.println(
                                 "Enter your message and hit enter. if you want to quit, simply type 'quit'");
+                        System.out.println("To send a file, type '/send <file path>'");
+                        if (fullDuplex) {
+                            chatFullDuplex(socketChannel, userInput);
+                            break mainloop;
+                        }
                         System.out.println("Waiting for first message from server...");
 
-                        while (true) {
-                            System.out.print("RECEIVE: ");
-                            int bytesRead = socketChannel.read(receiveBuffer.clear());
-                            if (bytesRead < 0) {
-                                System.out.println("Connection closed at the other end");
-                                break mainloop;
-                            } else {
-                                receiveBuffer.flip();
-                                incomingMessage = StandardCharsets.UTF_8.decode(receiveBuffer).toString();
-                                receiveBuffer.clear();
-                                if (!incomingMessage.isEmpty()) {
-                                    switch (incomingMessage.substring(0, 1)) {
-                                        case EXITSIGNAL -> {
-                                            System.out.println("Connection closed at the other end");
-                                            socketChannel.close();
-                                            break mainloop;
-                                        }
-                                        case MESSAGESIGNAL -> {
-                                            System.out.print(incomingMessage.substring(1, incomingMessage.length()));
-                                            System.out.println();
-                                        }
-                                    }
-                                }
-                            }
-
-                            outgoingMessageloop: while (true) {
-                                System.out.print("SEND: ");
-                                outgoingMessage = userInput.nextLine();
-                                String messageData = MESSAGESIGNAL + outgoingMessage;
-                                if (outgoingMessage.length() > 0) {
-                                    if (outgoingMessage.equalsIgnoreCase("quit")) {
-                                        sendBuffer.clear().put(EXITSIGNAL.getBytes(StandardCharsets.UTF_8)).flip();
-                                        while (sendBuffer.hasRemaining()) {
-                                            socketChannel.write(sendBuffer);
-                                        }
-                                        System.out.println("Quitting...");
-                                        break mainloop;
-                                    } else if (messageData.getBytes(StandardCharsets.UTF_8).length > sendBuffer
-                                            .capacity()) {
-                                        System.out.println("Message too long");
-                                        System.out.print("SEND: ");
-                                        break outgoingMessageloop;
-                                    } else {
-                                        sendBuffer.clear().put((messageData)
-                                                .getBytes(StandardCharsets.UTF_8)).flip();
-                                        while (sendBuffer.hasRemaining()) {
-                                            socketChannel.write(sendBuffer);
-                                        }
-                                        System.out.println();
-                                        break outgoingMessageloop;
-                                    }
-                                } else {
-                                    System.out.println("Cannot send an empty message, try again");
-                                    continue outgoingMessageloop;
+                        FrameReader frameReader = new FrameReader();
+                        Receiver receiver = new Receiver();
+                        try {
+                            while (true) {
+                                System.out.print("RECEIVE: ");
+                                if (!receiveTurn(socketChannel, frameReader, receiver)) {
+                                    System.out.println("Connection closed at the other end");
+                                    break mainloop;
                                 }
+                                if (!sendTurn(socketChannel, userInput))
+                                    break mainloop;
                             }
+                        } finally {
+                            frameReader.release();
+                            receiver.close();
                         }
                     } catch (Exception e) {
                         System.out.println("An error occured while connecting to server");
                         break mainloop;
                     }
                 }
+                case "3" -> {
+                    runHub();
+                    break mainloop;
+                }
                 default -> {
-                    System.out.println("Please enter a '1' or '2'");
+                    System.out.println("Please enter a '1', '2' or '3'");
                     continue mainloop;
                 }
             }
         }
     }
 
+    private static void writeHandshake(SocketChannel socketChannel) throws IOException {
+        ByteBuffer handshake = ByteBuffer.wrap(HANDSHAKE.getBytes(StandardCharsets.UTF_8));
+        while (handshake.hasRemaining())
+            socketChannel.write(handshake);
+    }
+
+    /**
+     * Reads exactly as many bytes as the handshake has, so frames that follow it
+     * are left for the frame reader.
+     */
+    private static boolean readHandshake(SocketChannel socketChannel) throws IOException {
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE.getBytes(StandardCharsets.UTF_8).length);
+        while (handshake.hasRemaining()) {
+            if (socketChannel.read(handshake) < 0)
+                return false;
+        }
+        return StandardCharsets.UTF_8.decode(handshake.flip()).toString().equals(HANDSHAKE);
+    }
+
+    /**
+     * Lets the user send one message or file. Returns false if the user quit.
+     */
+    private static boolean sendTurn(SocketChannel socketChannel, Scanner userInput) throws IOException {
+        while (true) {
+            System.out.print("SEND: ");
+            String outgoingMessage = userInput.nextLine();
+            if (outgoingMessage.equalsIgnoreCase("quit")) {
+                writeFrame(socketChannel, EXITSIGNAL, ByteBuffer.allocate(0));
+                System.out.println("Quitting...");
+                return false;
+            }
+            if (sendUserInput(socketChannel, outgoingMessage))
+                return true;
+        }
+    }
+
+    /**
+     * Reads frames until the other side has finished sending a message or a file.
+     * Returns false if it quit or closed the connection.
+     */
+    private static boolean receiveTurn(SocketChannel socketChannel, FrameReader frameReader, Receiver receiver)
+            throws IOException {
+        while (frameReader.read(socketChannel)) {
+            switch (receiver.handle(frameReader)) {
+                case MESSAGESIGNAL -> {
+                    System.out.println(receiver.message());
+                    return true;
+                }
+                case FILEENDSIGNAL -> {
+                    return true;
+                }
+                case EXITSIGNAL -> {
+                    return false;
+                }
+                default -> {
+                    // Part of a file transfer, keep reading
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a line typed by the user, either as a message or, for
+     * "/send <file path>", as a file transfer. Returns false if nothing was sent.
+     */
+    private static boolean sendUserInput(SocketChannel socketChannel, String outgoingMessage) throws IOException {
+        if (outgoingMessage.isEmpty()) {
+            System.out.println("Cannot send an empty message, try again");
+            return false;
+        }
+        if (outgoingMessage.startsWith("/send ")) {
+            Path file = Paths.get(outgoingMessage.substring("/send ".length()).trim());
+            if (!Files.isRegularFile(file)) {
+                System.out.println("File not found: " + file.toAbsolutePath());
+                return false;
+            }
+            long bytesSent = sendFile(socketChannel, file);
+            System.out.println("File sent: " + file.getFileName() + " (" + bytesSent + " bytes)");
+            return true;
+        }
+        byte[] messageData = outgoingMessage.getBytes(StandardCharsets.UTF_8);
+        if (messageData.length > MAX_PAYLOAD_SIZE) {
+            System.out.println("Message too long");
+            return false;
+        }
+        writeFrame(socketChannel, MESSAGESIGNAL, ByteBuffer.wrap(messageData));
+        System.out.println();
+        return true;
+    }
+
+    /**
+     * Writes one frame with a gathering write of header and payload, so the payload
+     * is never copied into a combined buffer.
+     */
+    private static void writeFrame(SocketChannel socketChannel, byte type, ByteBuffer payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE).put(type).putInt(payload.remaining()).flip();
+        ByteBuffer[] frame = { header, payload };
+        while (header.hasRemaining() || payload.hasRemaining())
+            socketChannel.write(frame);
+    }
+
+    /**
+     * Streams a file as a start frame (size and name), chunk frames read straight
+     * from the file into a direct buffer, and an end frame.
+     */
+    private static long sendFile(SocketChannel socketChannel, Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+            writeFrame(socketChannel, FILESTARTSIGNAL,
+                    ByteBuffer.allocate(Long.BYTES + name.length).putLong(fileChannel.size()).put(name).flip());
+            ByteBuffer header = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE);
+            ByteBuffer body = ByteBuffer.allocateDirect(FILE_CHUNK_SIZE);
+            ByteBuffer[] chunk = { header, body };
+            long bytesSent = 0;
+            while (fileChannel.read(body.clear()) > 0) {
+                body.flip();
+                bytesSent += body.remaining();
+                header.clear().put(FILECHUNKSIGNAL).putInt(body.remaining()).flip();
+                while (header.hasRemaining() || body.hasRemaining())
+                    socketChannel.write(chunk);
+            }
+            writeFrame(socketChannel, FILEENDSIGNAL, ByteBuffer.allocate(0));
+            return bytesSent;
+        }
+    }
+
+    /**
+     * Chats over an established connection with independent reading and writing.
+     * A reader thread prints incoming messages the moment they arrive while this
+     * thread sends whatever the user types, so neither side waits for the other.
+     *
+     * @return true if the user quit, false if the other end closed the connection
+     */
+    private static boolean chatFullDuplex(SocketChannel socketChannel, Scanner userInput) throws IOException {
+        AtomicBoolean peerClosed = new AtomicBoolean(false);
+        AtomicBoolean quitting = new AtomicBoolean(false);
+        Thread reader = new Thread(() -> {
+            FrameReader frameReader = new FrameReader();
+            Receiver receiver = new Receiver();
+            try {
+                while (frameReader.read(socketChannel)) {
+                    byte type = receiver.handle(frameReader);
+                    if (type == EXITSIGNAL)
+                        break;
+                    if (type == MESSAGESIGNAL)
+                        System.out.print("\rRECEIVE: " + receiver.message() + "\nSEND: ");
+                }
+            } catch (IOException e) {
+                // Closed by this side quitting, or the connection failed
+            } finally {
+                frameReader.release();
+                receiver.close();
+            }
+            if (!quitting.get()) {
+                peerClosed.set(true);
+                System.out.print("\rConnection closed at the other end, press enter to continue\n");
+            }
+        }, "duplex-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        while (true) {
+            System.out.print("SEND: ");
+            String outgoingMessage = userInput.hasNextLine() ? userInput.nextLine() : "quit";
+            if (peerClosed.get())
+                return false;
+            try {
+                if (outgoingMessage.equalsIgnoreCase("quit")) {
+                    quitting.set(true);
+                    writeFrame(socketChannel, EXITSIGNAL, ByteBuffer.allocate(0));
+                    System.out.println("Quitting...");
+                    socketChannel.close();
+                    return true;
+                }
+                sendUserInput(socketChannel, outgoingMessage);
+            } catch (IOException e) {
+                System.out.println("Connection closed at the other end");
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Relays chat between any number of clients from a single Selector thread.
+     * Each connection goes through the usual HANDSHAKE exchange, then every message
+     * a peer sends is fanned out to all other peers, prefixed with the sender's
+     * address, and file transfers are relayed frame by frame, one transfer at a
+     * time. Each relayed frame is encoded once and shared between the outboxes
+     * rather than copied per peer.
+     */
+    private static void runHub() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT), 1024);
+            System.out.println("Hub currently listening on port " + PORT);
+            System.out.println("Waiting for connections...");
+            runHub(serverChannel);
+        } catch (Exception e) {
+            System.out.println("An error occured while running the hub: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the hub on an already bound channel until that channel is closed, then
+     * disconnects every peer. NetworkingBenchmark runs it this way on an ephemeral
+     * port.
+     */
+    static void runHub(ServerSocketChannel serverChannel) throws IOException {
+        ByteBuffer handshakeMessage = ByteBuffer.wrap(HANDSHAKE.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        FileRelay fileRelay = new FileRelay();
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (serverChannel.isOpen()) {
+                selector.select(250);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel socketChannel;
+                        while ((socketChannel = serverChannel.accept()) != null) {
+                            socketChannel.configureBlocking(false);
+                            HubPeer peer = new HubPeer(socketChannel.getRemoteAddress().toString());
+                            SelectionKey peerKey = socketChannel.register(selector, SelectionKey.OP_READ, peer);
+                            enqueue(peerKey, handshakeMessage.duplicate());
+                        }
+                        continue;
+                    }
+                    if (key.isWritable())
+                        flushOutbox(key);
+                    if (key.isValid() && key.isReadable())
+                        readFromPeer(key, selector, fileRelay);
+                }
+                // A resumed peer may have whole frames buffered already, so handle it right away
+                SelectionKey resumed;
+                while ((resumed = fileRelay.resumeNext(selector)) != null)
+                    readFromPeer(resumed, selector, fileRelay);
+            }
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof HubPeer)
+                    disconnect(key);
+        }
+    }
+
+    private static void readFromPeer(SelectionKey key, Selector selector, FileRelay fileRelay) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        HubPeer peer = (HubPeer) key.attachment();
+        if (peer.paused)
+            return;
+        try {
+            if (!peer.joined) {
+                // Read into the handshake buffer itself, so no frame bytes are consumed
+                if (socketChannel.read(peer.handshake) < 0) {
+                    leave(key, selector, "Connection closed at the other end");
+                    return;
+                }
+                if (peer.handshake.hasRemaining())
+                    return;
+                if (!StandardCharsets.UTF_8.decode(peer.handshake.flip()).toString().equals(HANDSHAKE)) {
+                    System.out.println("Connected program is not PeerToPeerCommandLineMessaging: " + peer.name);
+                    disconnect(key);
+                    return;
+                }
+                peer.joined = true;
+                broadcast(selector, key, encodeMessage("* " + peer.name + " joined the chat"));
+                System.out.println(peer.name + " joined, " + countPeers(selector) + " peers connected");
+            }
+            // Frames left buffered when the peer was paused are handled before reading more
+            while (true) {
+                while (peer.frames.next()) {
+                    switch (peer.frames.type) {
+                        case EXITSIGNAL -> {
+                            leave(key, selector, "Peer quit");
+                            return;
+                        }
+                        case MESSAGESIGNAL -> broadcast(selector, key, encodeMessage("[" + peer.name + "] "
+                                + StandardCharsets.UTF_8.decode(peer.frames.payload)));
+                        case FILESTARTSIGNAL, FILECHUNKSIGNAL -> {
+                            if (peer.frames.type == FILESTARTSIGNAL && !fileRelay.start(key)) {
+                                peer.frames.unread();
+                                return;
+                            }
+                            relayFileFrame(selector, key, encodeFrame(peer.frames.type, peer.frames.payload));
+                            if (largestBacklog(selector, key) > FILE_RELAY_HIGH_WATER) {
+                                fileRelay.throttle(key);
+                                return;
+                            }
+                        }
+                        case FILEENDSIGNAL -> {
+                            relayFileFrame(selector, key, encodeFrame(peer.frames.type, peer.frames.payload));
+                            fileRelay.end(key);
+                        }
+                        default -> {
+                            // Not part of the protocol, ignore it
+                        }
+                    }
+                }
+                int bytesRead = peer.frames.fill(socketChannel);
+                if (bytesRead < 0) {
+                    leave(key, selector, "Connection closed at the other end");
+                    return;
+                }
+                if (bytesRead == 0)
+                    return;
+            }
+        } catch (IOException e) {
+            leave(key, selector, "Connection failed: " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer encodeMessage(String message) {
+        return encodeFrame(MESSAGESIGNAL, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ByteBuffer encodeFrame(byte type, ByteBuffer payload) {
+        return ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.remaining())
+                .put(type)
+                .putInt(payload.remaining())
+                .put(payload)
+                .flip()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Queues one encoded frame on every joined peer except the sender.
+     */
+    private static void broadcast(Selector selector, SelectionKey sender, ByteBuffer frame) {
+        for (SelectionKey key : selector.keys()) {
+            if (key == sender || !key.isValid() || !(key.attachment() instanceof HubPeer))
+                continue;
+            if (((HubPeer) key.attachment()).joined)
+                enqueue(key, frame.duplicate());
+        }
+    }
+
+    /**
+     * Queues a file frame for every other joined peer. Unlike chat, file frames never
+     * get a receiver disconnected: the relay throttles the sender instead.
+     */
+    private static void relayFileFrame(Selector selector, SelectionKey sender, ByteBuffer frame) {
+        for (SelectionKey key : selector.keys()) {
+            if (key == sender || !key.isValid() || !(key.attachment() instanceof HubPeer))
+                continue;
+            if (((HubPeer) key.attachment()).joined)
+                queue(key, frame.duplicate());
+        }
+    }
+
+    private static void enqueue(SelectionKey key, ByteBuffer message) {
+        HubPeer peer = (HubPeer) key.attachment();
+        if (peer.queuedBytes + message.remaining() > MAX_QUEUED_BYTES_PER_PEER) {
+            System.out.println(peer.name + " is not keeping up, disconnecting it");
+            disconnect(key);
+            return;
+        }
+        queue(key, message);
+    }
+
+    private static void queue(SelectionKey key, ByteBuffer message) {
+        HubPeer peer = (HubPeer) key.attachment();
+        peer.outbox.add(message);
+        peer.queuedBytes += message.remaining();
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private static void flushOutbox(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        HubPeer peer = (HubPeer) key.attachment();
+        try {
+            while (!peer.outbox.isEmpty()) {
+                ByteBuffer message = peer.outbox.peek();
+                peer.queuedBytes -= socketChannel.write(message);
+                if (message.hasRemaining())
+                    return;
+                peer.outbox.poll();
+            }
+            // Only drop OP_WRITE, a paused peer must stay unread
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.out.println("Connection to " + peer.name + " failed: " + e.getMessage());
+            disconnect(key);
+        }
+    }
+
+    private static void leave(SelectionKey key, Selector selector, String reason) {
+        HubPeer peer = (HubPeer) key.attachment();
+        disconnect(key);
+        if (peer.joined) {
+            broadcast(selector, key, encodeMessage("* " + peer.name + " left the chat"));
+            System.out.println(peer.name + " left (" + reason + "), " + countPeers(selector) + " peers connected");
+        }
+    }
+
+    private static void disconnect(SelectionKey key) {
+        key.cancel();
+        ((HubPeer) key.attachment()).frames.release();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.out.println("An error occured while closing a connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the most bytes queued for any joined peer other than the sender.
+     */
+    private static long largestBacklog(Selector selector, SelectionKey sender) {
+        long largest = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (key != sender && key.isValid() && key.attachment() instanceof HubPeer peer && peer.joined)
+                largest = Math.max(largest, peer.queuedBytes);
+        }
+        return largest;
+    }
+
+    private static long countPeers(Selector selector) {
+        return selector.keys().stream()
+                .filter(key -> key.isValid() && key.attachment() instanceof HubPeer
+                        && ((HubPeer) key.attachment()).joined)
+                .count();
+    }
+
 }
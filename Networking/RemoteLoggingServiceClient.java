@@ -1,39 +1,539 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-public class RemoteLoggingServiceClient {
+/**
+ * RemoteLoggingServiceClient sends log entries to RemoteLoggingServiceServer.
+ * Entries travel as length-prefixed frames over one persistent connection, so any
+ * number of entries can be sent without reconnecting.
+ * Besides the interactive main, the class can be embedded as an appender:
+ * log(level, message) only puts the entry on a bounded lock-free queue and a
+ * background sender thread drains it in batches over a single SocketChannel,
+ * reconnecting with exponential backoff when the server goes away.
+ * With a spool directory configured, entries that cannot be delivered are
+ * appended to memory-mapped spool segments and replayed on reconnect.
+ */
+public class RemoteLoggingServiceClient implements AutoCloseable {
     private static final int PORT = 1234;
 
+    /*
+     * Framed wire protocol, shared with RemoteLoggingServiceServer.
+     * A connection starts with the 4 byte MAGIC, followed by any number of frames:
+     * int length (of everything after this field), long timestamp (epoch millis),
+     * byte level length, level (UTF-8), message (UTF-8).
+     */
+    private static final int MAGIC = 0x524C5331; // "RLS1"
+    private static final int FRAME_HEADER_SIZE = Long.BYTES + 1;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int MAX_LEVEL_LENGTH = 255;
+
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * What log() does when the queue is full.
+     * BLOCK waits for the sender to make room, DROP_OLDEST discards the oldest
+     * queued entry and SPILL appends the new entry to a local file instead.
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, SPILL
+    }
+
+    private static final class Entry {
+        final long timestamp;
+        final String level;
+        final String message;
+
+        Entry(long timestamp, String level, String message) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private final InetSocketAddress serverAddress;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Path spillFile;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final Spool spool;
+    private final Thread sender;
+    private FileChannel spillChannel;
+    private volatile boolean senderIdle = false;
+    private volatile boolean running = true;
+
+    public RemoteLoggingServiceClient(String host, int port, int capacity, OverflowPolicy overflowPolicy,
+            Path spillFile) {
+        this(host, port, capacity, overflowPolicy, spillFile, null);
+    }
+
+    /**
+     * @param spoolDirectory where entries are spooled while the server is
+     *                       unreachable, or null to drop them instead
+     */
+    public RemoteLoggingServiceClient(String host, int port, int capacity, OverflowPolicy overflowPolicy,
+            Path spillFile, Path spoolDirectory) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null)
+            throw new IllegalArgumentException("A spill file is required for the SPILL overflow policy");
+        this.serverAddress = new InetSocketAddress(host, port);
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = spillFile;
+        try {
+            this.spool = spoolDirectory == null ? null : new Spool(spoolDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the spool in " + spoolDirectory, e);
+        }
+        this.sender = new Thread(this::runSender, "remote-log-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
     public static void main(String[] args) {
-        try (SocketChannel socketChannel = SocketChannel.open()) {
-            socketChannel.connect(new InetSocketAddress("localhost", PORT));
-            socketChannel.finishConnect();
-            if (socketChannel.isConnected()) {
-                Scanner userInput = new Scanner(System.in);
-                String logLevel;
-                String logMessage;
-                System.out.println("Successfully connected to server...");
-                System.out.println("Enter log level(e.g. high, low, medium): ");
-                logLevel = userInput.nextLine();
+        try (RemoteLoggingServiceClient client = new RemoteLoggingServiceClient("localhost", PORT, 10_000,
+                OverflowPolicy.SPILL, Paths.get("remote_log_spill.txt"), Paths.get("remote_log_spool"))) {
+            Scanner userInput = new Scanner(System.in);
+            while (true) {
+                System.out.println("Enter log level(e.g. high, low, medium) or 'quit' to exit: ");
+                if (!userInput.hasNextLine())
+                    break;
+                String logLevel = userInput.nextLine();
+                if (logLevel.equalsIgnoreCase("quit"))
+                    break;
                 System.out.println("Enter log message: ");
-                logMessage = userInput.nextLine();
+                if (!userInput.hasNextLine())
+                    break;
+                client.log(logLevel, userInput.nextLine());
+            }
+            userInput.close();
+        }
+    }
 
-                String logEntry = String.format("[%s] : [%s] - %s",
-                        java.time.LocalDateTime.now()
-                                .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                        logLevel.toUpperCase(),
-                        logMessage);
+    /**
+     * Queues a log entry for the background sender. Never touches the network; with
+     * the BLOCK policy it can wait for queue space when the queue is full.
+     */
+    public void log(String level, String message) {
+        if (!running)
+            throw new IllegalStateException("Client is closed");
+        Entry entry = new Entry(System.currentTimeMillis(), level.toUpperCase(), message);
+        while (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            switch (overflowPolicy) {
+                case BLOCK -> {
+                    wakeSender();
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                }
+                case DROP_OLDEST -> {
+                    if (queue.poll() != null) {
+                        queued.decrementAndGet();
+                        dropped.incrementAndGet();
+                    }
+                }
+                case SPILL -> {
+                    spill(entry);
+                    return;
+                }
+            }
+        }
+        queue.offer(entry);
+        wakeSender();
+    }
 
-                socketChannel.write(ByteBuffer.wrap(logEntry.getBytes()));
-                userInput.close();
+    public long droppedEntries() {
+        return dropped.get();
+    }
+
+    public long spilledEntries() {
+        return spilled.get();
+    }
+
+    /**
+     * Stops the sender after it has delivered everything still queued, or given up
+     * because the server cannot be reached.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(sender);
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                } catch (IOException e) {
+                    System.out.println("An error occured while closing the spill file: " + e.getMessage());
+                }
+            }
+        }
+        if (dropped.get() > 0)
+            System.out.println(dropped.get() + " log entries could not be delivered");
+    }
+
+    private void wakeSender() {
+        if (senderIdle)
+            LockSupport.unpark(sender);
+    }
 
-            } else
-                System.out.println("Could not connect to server...");
+    private synchronized void spill(Entry entry) {
+        try {
+            if (spillChannel == null)
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            String line = String.format("[%s] : [%s] - %s%n", TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(
+                    entry.timestamp)), entry.level, entry.message);
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining())
+                spillChannel.write(buffer);
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void runSender() {
+        ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+        List<Entry> batch = new ArrayList<>();
+        SocketChannel socketChannel = null;
+        long backoff = MIN_BACKOFF_MILLIS;
+        long nextConnectAttempt = 0;
+        // On close, spooled entries still get one delivery attempt unless the server is known to be down
+        while (running || !queue.isEmpty() || !batch.isEmpty()
+                || (spool != null && spool.hasPending() && nextConnectAttempt == 0)) {
+            boolean spoolPending = spool != null && spool.hasPending();
+            if (batch.isEmpty() && !fillBatch(batch) && (!spoolPending || socketChannel != null)) {
+                senderIdle = true;
+                if (queue.isEmpty() && running)
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                senderIdle = false;
+                continue;
+            }
+            if (socketChannel == null && System.currentTimeMillis() < nextConnectAttempt) {
+                // While disconnected new entries go to the spool, or wait for the next attempt
+                if (spool != null) {
+                    spoolBatch(batch);
+                    if (queue.isEmpty())
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(nextConnectAttempt
+                            - System.currentTimeMillis()));
+                }
+                continue;
+            }
+            try {
+                if (socketChannel == null) {
+                    socketChannel = SocketChannel.open(serverAddress);
+                    sendBuffer.clear().putInt(MAGIC).flip();
+                    writeFully(socketChannel, sendBuffer);
+                    // Spooled entries are older than anything queued, so they go first
+                    if (spool != null)
+                        spool.replay(socketChannel);
+                    backoff = MIN_BACKOFF_MILLIS;
+                    nextConnectAttempt = 0;
+                }
+                sendBuffer.clear();
+                for (Entry entry : batch) {
+                    if (encodeFrame(sendBuffer, entry.timestamp, entry.level, entry.message))
+                        continue;
+                    // Keep entries in order: send what is buffered before retrying
+                    writeFully(socketChannel, sendBuffer.flip());
+                    sendBuffer.clear();
+                    if (!encodeFrame(sendBuffer, entry.timestamp, entry.level, entry.message))
+                        sendLarge(socketChannel, entry);
+                }
+                writeFully(socketChannel, sendBuffer.flip());
+                // The batch is only forgotten once it has been handed to the socket
+                batch.clear();
+            } catch (IOException e) {
+                closeQuietly(socketChannel);
+                socketChannel = null;
+                nextConnectAttempt = System.currentTimeMillis() + backoff;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                if (spool != null)
+                    spoolBatch(batch);
+                else if (!running)
+                    break;
+            }
+        }
+        closeQuietly(socketChannel);
+        dropped.addAndGet(batch.size() + queue.size());
+    }
+
+    private void spoolBatch(List<Entry> batch) {
+        for (Entry entry : batch) {
+            if (!spool.append(entry))
+                dropped.incrementAndGet();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Moves queued entries into the batch until the estimated frame size would
+     * exceed the send buffer. Returns false if nothing was queued.
+     */
+    private boolean fillBatch(List<Entry> batch) {
+        int estimatedSize = 0;
+        Entry entry;
+        while (estimatedSize < SEND_BUFFER_SIZE && (entry = queue.poll()) != null) {
+            queued.decrementAndGet();
+            batch.add(entry);
+            estimatedSize += Integer.BYTES + FRAME_HEADER_SIZE + entry.level.length() + entry.message.length();
+        }
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Sends an entry that is larger than the whole send buffer.
+     */
+    private static void sendLarge(SocketChannel socketChannel, Entry entry) throws IOException {
+        // Not a shared buffer, large entries are rare
+        ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME_SIZE + Integer.BYTES);
+        if (encodeFrame(frame, entry.timestamp, entry.level, entry.message)) {
+            writeFully(socketChannel, frame.flip());
+        } else {
+            System.out.println("Log entry is too large to send, dropping it");
+        }
+    }
+
+    /**
+     * Appends one frame to the buffer. Several frames can be encoded into the same
+     * buffer and sent with a single write.
+     *
+     * @return false, leaving the buffer untouched, if the frame does not fit
+     */
+    static boolean encodeFrame(ByteBuffer buffer, long timestamp, String level, String message) {
+        byte[] levelBytes = level.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        if (levelBytes.length > MAX_LEVEL_LENGTH)
+            return false;
+        int length = FRAME_HEADER_SIZE + levelBytes.length + messageBytes.length;
+        if (length > MAX_FRAME_SIZE || buffer.remaining() < Integer.BYTES + length)
+            return false;
+        buffer.putInt(length)
+                .putLong(timestamp)
+                .put((byte) levelBytes.length)
+                .put(levelBytes)
+                .put(messageBytes);
+        return true;
+    }
+
+    /**
+     * The length of the frame for an entry, without its length prefix, or -1 if
+     * the entry cannot be framed at all.
+     */
+    static int frameLength(String level, String message) {
+        int levelLength = level.getBytes(StandardCharsets.UTF_8).length;
+        if (levelLength > MAX_LEVEL_LENGTH)
+            return -1;
+        int length = FRAME_HEADER_SIZE + levelLength + message.getBytes(StandardCharsets.UTF_8).length;
+        return length > MAX_FRAME_SIZE ? -1 : length;
+    }
+
+    private static void writeFully(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            socketChannel.write(buffer);
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        if (socketChannel == null)
+            return;
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            // Nothing more to do with a broken connection
+        }
+    }
+
+    /**
+     * Memory-mapped, segmented on-disk spool for entries that could not be sent.
+     * Segments are preallocated files of SEGMENT_SIZE bytes holding wire frames back
+     * to back, each followed by a zero length marking the current end, so appends
+     * are plain writes into the mapping and replay is a straight copy of the
+     * spooled bytes onto the socket. The replay position is kept in a small mapped
+     * offset file and advanced after every chunk, so a crash during replay only
+     * resends the chunk that was in flight. Only the sender thread uses the spool.
+     */
+    private static final class Spool {
+        private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+        private static final int REPLAY_CHUNK_SIZE = 1024 * 1024;
+        private static final String SEGMENT_PREFIX = "spool-";
+        private static final String SEGMENT_SUFFIX = ".seg";
+
+        private final Path directory;
+        private final MappedByteBuffer offset;
+        private final TreeSet<Long> segments = new TreeSet<>();
+        private long writeSegment;
+        private MappedByteBuffer writeBuffer;
+        private long readSegment;
+        private int readPosition;
+
+        Spool(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve("spool.offset"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                offset = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES + Integer.BYTES);
+            }
+            try (var files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+
+            // Recover where the last run stopped replaying and appending
+            readSegment = offset.getLong(0);
+            readPosition = offset.getInt(Long.BYTES);
+            for (Long segment : new ArrayList<>(segments.headSet(readSegment))) {
+                Files.deleteIfExists(segmentPath(segment));
+                segments.remove(segment);
+            }
+            if (segments.isEmpty())
+                segments.add(readSegment);
+            if (segments.first() > readSegment) {
+                readSegment = segments.first();
+                readPosition = 0;
+            }
+            writeSegment = segments.last();
+            writeBuffer = map(writeSegment);
+            writeBuffer.position(findEnd(writeBuffer, writeSegment == readSegment ? readPosition : 0));
+            saveOffset();
+        }
+
+        boolean hasPending() {
+            return readSegment < writeSegment || readPosition < writeBuffer.position();
+        }
+
+        /**
+         * Appends one entry as a frame, rolling to a new segment when the current one
+         * is full. Returns false if the entry is too large for a segment.
+         */
+        boolean append(Entry entry) {
+            try {
+                // Checked first, so an entry that fits no segment does not leave an empty one behind
+                int length = frameLength(entry.level, entry.message);
+                if (length < 0 || Integer.BYTES + length > SEGMENT_SIZE)
+                    return false;
+                if (!encodeFrame(writeBuffer, entry.timestamp, entry.level, entry.message)) {
+                    writeSegment++;
+                    segments.add(writeSegment);
+                    writeBuffer = map(writeSegment);
+                    if (!encodeFrame(writeBuffer, entry.timestamp, entry.level, entry.message))
+                        return false;
+                }
+                if (writeBuffer.remaining() >= Integer.BYTES)
+                    writeBuffer.putInt(writeBuffer.position(), 0);
+                return true;
+            } catch (IOException e) {
+                System.out.println("An error occured while spooling a log entry: " + e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Sends everything spooled, oldest first, in chunks of whole frames.
+         */
+        void replay(SocketChannel socketChannel) throws IOException {
+            while (hasPending()) {
+                boolean active = readSegment == writeSegment;
+                MappedByteBuffer segment = active ? writeBuffer : map(readSegment);
+                int end = active ? writeBuffer.position() : findEnd(segment, readPosition);
+                while (readPosition < end) {
+                    int chunkEnd = chunkEnd(segment, readPosition, end);
+                    writeFully(socketChannel, segment.duplicate().position(readPosition).limit(chunkEnd));
+                    readPosition = chunkEnd;
+                    saveOffset();
+                }
+                if (active) {
+                    // Caught up: start the active segment over instead of growing the spool
+                    writeBuffer.putInt(0, 0).position(0);
+                    readPosition = 0;
+                    saveOffset();
+                } else {
+                    readSegment++;
+                    readPosition = 0;
+                    saveOffset();
+                    Files.deleteIfExists(segmentPath(readSegment - 1));
+                    segments.remove(readSegment - 1);
+                }
+            }
+        }
+
+        private void saveOffset() {
+            offset.putLong(0, readSegment).putInt(Long.BYTES, readPosition);
+        }
+
+        private Path segmentPath(long segment) {
+            return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+        }
+
+        private MappedByteBuffer map(long segment) throws IOException {
+            // Mapping the full segment size preallocates the file
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+        }
+
+        /**
+         * Walks frames from the given position to the zero length that marks the end.
+         */
+        private static int findEnd(ByteBuffer segment, int from) {
+            int position = from;
+            while (position + Integer.BYTES <= segment.capacity()) {
+                int length = segment.getInt(position);
+                if (length < FRAME_HEADER_SIZE || length > segment.capacity() - position - Integer.BYTES)
+                    break;
+                position += Integer.BYTES + length;
+            }
+            return position;
+        }
 
-        } catch (Exception e) {
-            System.out.println("An error occured while trying to connect to server: " + e.getMessage());
+        /**
+         * Returns the end of the last whole frame that fits in one replay chunk.
+         */
+        private static int chunkEnd(ByteBuffer segment, int from, int end) {
+            int position = from;
+            while (position < end) {
+                int next = position + Integer.BYTES + segment.getInt(position);
+                if (next - from > REPLAY_CHUNK_SIZE && position > from)
+                    break;
+                position = next;
+            }
+            return position;
         }
     }
 
@@ -1,76 +1,1271 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * RemoteLoggingServiceServer accepts log entries from RemoteLoggingServiceClient
+ * instances and appends them to size-limited segments in the remote_log directory.
+ * A single Selector thread multiplexes all client connections, so thousands of
+ * clients can stay connected while their entries are read incrementally as the
+ * bytes arrive. Clients speaking the framed protocol can send any number of
+ * entries over one persistent connection; legacy clients that send a single
+ * unframed entry and disconnect are still accepted.
+ * Entries are handed to a LogWriter thread that batches them into large writes
+ * through one long-lived AsynchronousFileChannel. The batching can be tuned with
+ * system properties:
+ * -Dremotelog.flushBytes (batch size), -Dremotelog.flushMillis (maximum delay
+ * before a partial batch is written) and -Dremotelog.force (none, batch or
+ * interval).
+ * Each segment has a sparse, memory-mapped index of timestamps and client hosts,
+ * so "java RemoteLoggingServiceServer query <from> <to> [client_host]" only reads
+ * the parts of the segments that can hold matching entries. Segment size and
+ * retention are set with -Dremotelog.segmentBytes, -Dremotelog.retainSegments
+ * and -Dremotelog.retainHours (0 keeps everything).
+ * -Dremotelog.mode=threads switches from the Selector loop to one thread per
+ * connection, and "java RemoteLoggingServiceServer loadtest" compares both modes
+ * over loopback.
+ */
 public class RemoteLoggingServiceServer {
     private static final int PORT = 1234;
-    private static final String logFileName = "remote_log.txt";
-    private static Path logFilePath = Paths.get(logFileName);
+    private static final String logDirectoryName = "remote_log";
+    private static Path logDirectory = Paths.get(logDirectoryName);
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long STATS_INTERVAL_MILLIS = 1000;
+
+    // Shared by every connection, the selector thread is the only reader
+    private static final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private static final AtomicLong acceptedConnections = new AtomicLong();
+    private static final AtomicLong openConnections = new AtomicLong();
+    private static final LongAdder bytesReceived = new LongAdder();
+
+    private static LogWriter logWriter;
+    // Only set while the load test runs
+    private static LatencyRecorder latencyRecorder;
+
+    /**
+     * How connections are served. SELECTOR multiplexes every connection on one
+     * thread, THREADS gives each connection its own (virtual, when available)
+     * thread running plain blocking reads.
+     */
+    private enum Mode {
+        SELECTOR, THREADS
+    }
+
+    /**
+     * Per-connection state, attached to the connection's SelectionKey.
+     * Complete frames are decoded straight out of the shared read buffer; only the
+     * tail of a frame that is split across reads is copied into pendingFrame.
+     * Legacy clients have their whole stream collected in partialMessage.
+     */
+    private static class ClientConnection {
+        final String remoteAddress;
+        final int hostHash;
+        final byte[] entryPrefix;
+        Protocol protocol = Protocol.UNKNOWN;
+        ByteBuffer pendingFrame;
+        ByteArrayOutputStream partialMessage;
+
+        ClientConnection(InetSocketAddress remoteAddress) {
+            this.remoteAddress = remoteAddress.toString();
+            this.hostHash = remoteAddress.getAddress().getHostAddress().hashCode();
+            this.entryPrefix = ("\n[" + this.remoteAddress + "] : [[").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private enum Protocol {
+        UNKNOWN, FRAMED, LEGACY
+    }
+
+    /*
+     * Framed wire protocol, shared with RemoteLoggingServiceClient.
+     * A connection starts with the 4 byte MAGIC, followed by any number of frames:
+     * int length (of everything after this field), long timestamp (epoch millis),
+     * byte level length, level (UTF-8), message (UTF-8).
+     * Legacy clients send a single "[timestamp] : [LEVEL] - message" string and
+     * close the connection, which never starts with MAGIC.
+     */
+    private static final int MAGIC = 0x524C5331; // "RLS1"
+    private static final int FRAME_HEADER_SIZE = Long.BYTES + 1;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final byte[] LEVEL_SEPARATOR = "] : [".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE_SEPARATOR = "] - ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENTRY_SUFFIX = "] ".getBytes(StandardCharsets.UTF_8);
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Timestamps only have second resolution, so the last formatted one is reused.
+     * Immutable, so connection threads can share it without locking.
+     */
+    private static final class CachedTimestamp {
+        final long second;
+        final byte[] bytes;
+
+        CachedTimestamp(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+
+    private static volatile CachedTimestamp cachedTimestamp = new CachedTimestamp(Long.MIN_VALUE, null);
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            if (args[0].equals("query") && (args.length == 3 || args.length == 4)) {
+                query(args[1], args[2], args.length == 4 ? args[3] : null);
+            } else if (args[0].equals("loadtest") && args.length <= 3) {
+                loadTest(args.length > 1 ? Integer.parseInt(args[1]) : 1000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 100);
+            } else {
+                System.out.println("Usage: java RemoteLoggingServiceServer [query <from> <to> [client_host]]");
+                System.out.println(
+                        "       java RemoteLoggingServiceServer loadtest [connections] [entries_per_connection]");
+                System.out.println("Times use the format \"yyyy-MM-dd HH:mm:ss\"");
+            }
+            return;
+        }
+
+        Mode mode;
+        ForcePolicy forcePolicy;
+        try {
+            mode = Mode.valueOf(System.getProperty("remotelog.mode", "selector").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid remotelog.mode, use selector or threads");
+            return;
+        }
+        try {
+            forcePolicy = ForcePolicy.valueOf(System.getProperty("remotelog.force", "interval").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid remotelog.force, use none, batch or interval");
+            return;
+        }
+        try {
+            logWriter = new LogWriter(logDirectory,
+                    Integer.getInteger("remotelog.flushBytes", 256 * 1024),
+                    Long.getLong("remotelog.flushMillis", 200),
+                    forcePolicy,
+                    Long.getLong("remotelog.segmentBytes", 64L * 1024 * 1024),
+                    Integer.getInteger("remotelog.retainSegments", 0),
+                    TimeUnit.HOURS.toMillis(Long.getLong("remotelog.retainHours", 0)));
+        } catch (Exception e) {
+            System.out.println("An error occured while opening the log file: " + e.getMessage());
+            return;
+        }
+
         try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
-            ServerSocket serverSocket = serverChannel.socket();
-            serverSocket.bind(new InetSocketAddress("localhost", PORT));
-            System.out.println("Server listening on port " + PORT);
+            serverChannel.bind(new InetSocketAddress("localhost", PORT), 1024);
+            // Only start the writer once the port is ours, it keeps the JVM alive until closed
+            logWriter.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(logWriter::close));
+            System.out.println("Server listening on port " + PORT + " in " + mode + " mode");
+            System.out.println("Waiting for connections...");
+            Thread statsReporter = new Thread(RemoteLoggingServiceServer::reportStats, "stats-reporter");
+            statsReporter.setDaemon(true);
+            statsReporter.start();
+            if (mode == Mode.SELECTOR)
+                runSelectorServer(serverChannel);
+            else
+                runThreadPerConnectionServer(serverChannel);
+        } catch (Exception e) {
+            System.out.println("An error was encountered while setting up the server: " + e.getMessage());
+            // Exiting runs the shutdown hook, which closes a started writer; otherwise close it here
+            if (logWriter.isAlive())
+                System.exit(1);
+            logWriter.close();
+        }
+    }
+
+    private static void reportStats() {
+        long lastReport = System.currentTimeMillis();
+        long lastAccepted = 0;
+        long lastBytes = 0;
+        while (true) {
+            try {
+                Thread.sleep(STATS_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            double seconds = (now - lastReport) / 1000.0;
+            long accepted = acceptedConnections.get();
+            long bytes = bytesReceived.sum();
+            if (accepted != lastAccepted || bytes != lastBytes) {
+                System.out.printf("Stats: %.0f connections/s, %.0f bytes/s, %d open connections, "
+                        + "%d entries written%n",
+                        (accepted - lastAccepted) / seconds,
+                        (bytes - lastBytes) / seconds,
+                        openConnections.get(),
+                        logWriter.entriesWritten());
+            }
+            lastAccepted = accepted;
+            lastBytes = bytes;
+            lastReport = now;
+        }
+    }
+
+    /**
+     * Serves every connection from one Selector thread until the server channel is
+     * closed.
+     */
+    private static void runSelectorServer(ServerSocketChannel serverChannel) throws IOException {
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (serverChannel.isOpen()) {
+                selector.select(STATS_INTERVAL_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept(key, selector);
+                    else if (key.isReadable())
+                        read(key);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel)
+                    close(key);
+            }
+        }
+    }
+
+    /**
+     * Accepts on the blocking server channel and hands each connection to its own
+     * thread until the server channel is closed. Virtual threads are used when the
+     * runtime has them (Java 21+), otherwise platform threads from a cached pool.
+     */
+    private static void runThreadPerConnectionServer(ServerSocketChannel serverChannel) {
+        ExecutorService executor = newConnectionExecutor();
+        try {
             while (true) {
-                System.out.println("Waiting for connections...");
                 SocketChannel clientChannel = serverChannel.accept();
-                if (clientChannel == null)
-                    Thread.sleep(2000);
-                else {
-                    System.out.println(
-                            "Server successfully connected to client: " + clientChannel.getRemoteAddress().toString());
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
-                    StringBuilder message = new StringBuilder();
-                    while (clientChannel.read(buffer) > 0) {
-                        buffer.flip();
-                        String text = new String(
-                                buffer.array(),
-                                buffer.arrayOffset() + buffer.position(),
-                                buffer.remaining(),
-                                StandardCharsets.UTF_8);
-                        message.append(text);
-                        buffer.clear();
+                acceptedConnections.incrementAndGet();
+                openConnections.incrementAndGet();
+                executor.execute(() -> serveConnection(clientChannel));
+            }
+        } catch (ClosedChannelException e) {
+            // The server is shutting down
+        } catch (IOException e) {
+            System.out.println("An error occured while accepting a connection: " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            // Looked up reflectively so the server still compiles and runs before Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, serving connections on platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Blocking per-connection loop used in THREADS mode.
+     */
+    private static void serveConnection(SocketChannel clientChannel) {
+        ClientConnection connection = null;
+        try (clientChannel) {
+            connection = new ClientConnection((InetSocketAddress) clientChannel.getRemoteAddress());
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int bytesRead;
+            while ((bytesRead = clientChannel.read(buffer.clear())) > 0) {
+                bytesReceived.add(bytesRead);
+                if (!consume(connection, buffer.flip()))
+                    return;
+            }
+            finish(connection);
+        } catch (IOException e) {
+            if (connection != null)
+                System.out.println("Connection to " + connection.remoteAddress + " failed: " + e.getMessage());
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    private static void accept(SelectionKey key, Selector selector) {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        try {
+            // Drain the accept backlog in one go, the key stays ready until it is empty
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                clientChannel.configureBlocking(false);
+                clientChannel.register(selector, SelectionKey.OP_READ,
+                        new ClientConnection((InetSocketAddress) clientChannel.getRemoteAddress()));
+                acceptedConnections.incrementAndGet();
+                openConnections.incrementAndGet();
+            }
+        } catch (IOException e) {
+            System.out.println("An error occured while accepting a connection: " + e.getMessage());
+        }
+    }
+
+    private static void read(SelectionKey key) {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        ClientConnection connection = (ClientConnection) key.attachment();
+        try {
+            int bytesRead;
+            while ((bytesRead = clientChannel.read(readBuffer.clear())) > 0) {
+                bytesReceived.add(bytesRead);
+                if (!consume(connection, readBuffer.flip())) {
+                    close(key);
+                    return;
+                }
+            }
+            if (bytesRead < 0) {
+                close(key);
+                finish(connection);
+            }
+        } catch (IOException e) {
+            System.out.println("Connection to " + connection.remoteAddress + " failed: " + e.getMessage());
+            close(key);
+        }
+    }
+
+    /**
+     * Processes bytes just read from a connection. Returns false if the connection
+     * sent something invalid and has to be closed.
+     */
+    private static boolean consume(ClientConnection connection, ByteBuffer input) {
+        if (connection.protocol == Protocol.UNKNOWN)
+            detectProtocol(connection, input);
+        if (connection.protocol == Protocol.LEGACY) {
+            connection.partialMessage.write(input.array(), input.position(), input.remaining());
+        } else if (!decodeFrames(connection, input)) {
+            System.out.println("Invalid frame received from " + connection.remoteAddress + ", closing connection");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Handles the end of a connection's stream.
+     */
+    private static void finish(ClientConnection connection) {
+        if (connection.protocol == Protocol.LEGACY) {
+            String message = connection.partialMessage.toString(StandardCharsets.UTF_8);
+            if (!message.isEmpty())
+                logWriter.append(System.currentTimeMillis(), connection.hostHash,
+                        String.format("\n[%s] : [%s] ", connection.remoteAddress, message)
+                                .getBytes(StandardCharsets.UTF_8));
+        } else if (connection.pendingFrame != null) {
+            System.out.println("Connection to " + connection.remoteAddress + " closed in the middle of a frame");
+        }
+    }
+
+    /**
+     * Decides between the framed and the legacy protocol from the first bytes of
+     * a connection. Consumes the magic number when the client is framed.
+     */
+    private static void detectProtocol(ClientConnection connection, ByteBuffer input) {
+        // The magic can itself be split across reads, so earlier bytes wait in pendingFrame
+        ByteBuffer source = input;
+        if (connection.pendingFrame != null) {
+            ByteBuffer pending = connection.pendingFrame.flip();
+            source = ByteBuffer.allocate(pending.remaining() + input.remaining()).put(pending).put(input).flip();
+            connection.pendingFrame = null;
+        }
+        int available = Math.min(source.remaining(), Integer.BYTES);
+        for (int i = 0; i < available; i++) {
+            if (source.get(source.position() + i) != (byte) (MAGIC >>> (24 - 8 * i))) {
+                connection.protocol = Protocol.LEGACY;
+                connection.partialMessage = new ByteArrayOutputStream();
+                if (source != input)
+                    connection.partialMessage.write(source.array(), source.position(), source.remaining());
+                return;
+            }
+        }
+        if (available < Integer.BYTES) {
+            connection.pendingFrame = ByteBuffer.allocate(Integer.BYTES).put(source);
+            return;
+        }
+        source.position(source.position() + Integer.BYTES);
+        connection.protocol = Protocol.FRAMED;
+        if (source != input && source.hasRemaining()) {
+            // Hand the bytes after the magic over to decodeFrames
+            connection.pendingFrame = source.compact();
+        }
+    }
+
+    /**
+     * Decodes every complete frame available for the connection and queues the
+     * resulting entries. Returns false if the stream is not a valid frame sequence.
+     */
+    private static boolean decodeFrames(ClientConnection connection, ByteBuffer input) {
+        if (connection.protocol != Protocol.FRAMED)
+            return true;
+        ByteBuffer source = input;
+        if (connection.pendingFrame != null) {
+            ByteBuffer pending = connection.pendingFrame;
+            if (pending.remaining() < input.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.position() + input.remaining());
+                pending = grown.put(pending.flip());
+            }
+            source = pending.put(input).flip();
+            connection.pendingFrame = null;
+        }
+
+        while (source.remaining() >= Integer.BYTES) {
+            int length = source.getInt(source.position());
+            if (length < FRAME_HEADER_SIZE || length > MAX_FRAME_SIZE)
+                return false;
+            if (source.remaining() < Integer.BYTES + length)
+                break;
+            source.position(source.position() + Integer.BYTES);
+            long timestamp = source.getLong();
+            int levelLength = source.get() & 0xFF;
+            int messageLength = length - FRAME_HEADER_SIZE - levelLength;
+            if (messageLength < 0)
+                return false;
+            int messageStart = source.position() + levelLength;
+            LatencyRecorder recorder = latencyRecorder;
+            if (recorder != null)
+                recorder.record(source, messageStart, messageLength);
+            logWriter.append(timestamp, connection.hostHash,
+                    formatEntry(connection, source, timestamp, levelLength, messageLength));
+        }
+
+        if (source.hasRemaining()) {
+            int needed = source.remaining() >= Integer.BYTES
+                    ? Integer.BYTES + source.getInt(source.position())
+                    : READ_BUFFER_SIZE;
+            ByteBuffer pending = source == input ? null : source;
+            if (pending == null || pending.capacity() < needed) {
+                connection.pendingFrame = ByteBuffer.allocate(Math.max(needed, READ_BUFFER_SIZE)).put(source);
+            } else {
+                connection.pendingFrame = pending.compact();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the log line for one frame, copying level and message bytes straight
+     * from the frame without decoding them into Strings.
+     */
+    private static byte[] formatEntry(ClientConnection connection, ByteBuffer source, long timestamp,
+            int levelLength, int messageLength) {
+        byte[] time = formatTimestamp(timestamp);
+        byte[] entry = new byte[connection.entryPrefix.length + time.length + LEVEL_SEPARATOR.length + levelLength
+                + MESSAGE_SEPARATOR.length + messageLength + ENTRY_SUFFIX.length];
+        int offset = 0;
+        System.arraycopy(connection.entryPrefix, 0, entry, offset, connection.entryPrefix.length);
+        offset += connection.entryPrefix.length;
+        System.arraycopy(time, 0, entry, offset, time.length);
+        offset += time.length;
+        System.arraycopy(LEVEL_SEPARATOR, 0, entry, offset, LEVEL_SEPARATOR.length);
+        offset += LEVEL_SEPARATOR.length;
+        source.get(entry, offset, levelLength);
+        offset += levelLength;
+        System.arraycopy(MESSAGE_SEPARATOR, 0, entry, offset, MESSAGE_SEPARATOR.length);
+        offset += MESSAGE_SEPARATOR.length;
+        source.get(entry, offset, messageLength);
+        offset += messageLength;
+        System.arraycopy(ENTRY_SUFFIX, 0, entry, offset, ENTRY_SUFFIX.length);
+        return entry;
+    }
+
+    private static byte[] formatTimestamp(long timestamp) {
+        long second = Math.floorDiv(timestamp, 1000L);
+        CachedTimestamp cached = cachedTimestamp;
+        if (cached.second != second) {
+            cached = new CachedTimestamp(second,
+                    TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.UTF_8));
+            cachedTimestamp = cached;
+        }
+        return cached.bytes;
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        openConnections.decrementAndGet();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.out.println("An error occured while closing a connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * When the log writer asks the operating system to push written bytes to disk.
+     * NONE leaves it to the OS, BATCH forces after every batch and INTERVAL forces
+     * at most once per flush interval.
+     */
+    private enum ForcePolicy {
+        NONE, BATCH, INTERVAL
+    }
+
+    /**
+     * An entry waiting for the log writer, with the fields the segment index needs.
+     */
+    private static final class LogRecord {
+        final long timestamp;
+        final int hostHash;
+        final byte[] bytes;
+
+        LogRecord(long timestamp, int hostHash, byte[] bytes) {
+            this.timestamp = timestamp;
+            this.hostHash = hostHash;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Group-commit writer for the log segments.
+     * Entries from every connection are queued and a single thread copies them into
+     * one large buffer, which is written when it fills up or when flushMillis has
+     * passed since the first entry of the batch. The channel of the active segment
+     * stays open until the segment is full and the append position is tracked here
+     * instead of being looked up with size() for every entry, so batches never
+     * overlap. Every entry is also reported to the segment's index.
+     */
+    private static class LogWriter extends Thread {
+        private static final int QUEUE_CAPACITY = 64 * 1024;
+        private static final long RETRY_MILLIS = 1000;
+
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Path directory;
+        private final ByteBuffer batch;
+        private final long flushMillis;
+        private final ForcePolicy forcePolicy;
+        private final long segmentBytes;
+        private final int retainSegments;
+        private final long retainMillis;
+        private AsynchronousFileChannel fileChannel;
+        private SegmentIndex index;
+        private long segmentId;
+        private long position;
+        private long lastForce = System.currentTimeMillis();
+        private boolean unforcedWrites = false;
+        // Entries in the batch that have not reached the file yet
+        private int batchEntries = 0;
+        // Set after a failed write until a new segment could be opened
+        private boolean failed = false;
+        private long entriesLost = 0;
+        private volatile long entriesWritten = 0;
+        private volatile boolean running = true;
+
+        LogWriter(Path directory, int flushBytes, long flushMillis, ForcePolicy forcePolicy, long segmentBytes,
+                int retainSegments, long retainMillis) throws IOException {
+            super("log-writer");
+            this.directory = Files.createDirectories(directory);
+            this.batch = ByteBuffer.allocateDirect(flushBytes);
+            this.flushMillis = flushMillis;
+            this.forcePolicy = forcePolicy;
+            this.segmentBytes = segmentBytes;
+            this.retainSegments = retainSegments;
+            this.retainMillis = retainMillis;
+            // Always start a fresh segment, earlier ones may have been closed uncleanly
+            List<Long> existing = listSegments(directory);
+            this.segmentId = existing.isEmpty() ? 0 : existing.get(existing.size() - 1) + 1;
+            openSegment();
+        }
+
+        /**
+         * Queues an entry for writing. Blocks only when the writer has fallen a full
+         * queue behind, which pushes back on the readers instead of growing the heap.
+         * The writer keeps taking entries even while the disk fails, discarding
+         * them, so this never blocks for good.
+         */
+        void append(long timestamp, int hostHash, byte[] entry) {
+            try {
+                queue.put(new LogRecord(timestamp, hostHash, entry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long entriesWritten() {
+            return entriesWritten;
+        }
+
+        @Override
+        public void run() {
+            // A record stays here until it is in the batch, so a failure counts each lost entry once
+            ArrayDeque<LogRecord> drained = new ArrayDeque<>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    if (failed) {
+                        // Give the disk a moment before trying a new segment
+                        discardFor(RETRY_MILLIS, drained);
+                        if (!reopen())
+                            continue;
                     }
-                    System.out
-                            .println("Log entry received from client: " + clientChannel.getRemoteAddress().toString());
-                    String logEntry = String.format("\n[%s] : [%s] ", clientChannel.getRemoteAddress().toString(),
-                            message.toString());
-                    System.out.println("Writing log to file");
-
-                    try (AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(logFilePath,
-                            StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
-                        fileChannel.write(ByteBuffer.wrap(logEntry.getBytes()), fileChannel.size(), null,
-                                new CompletionHandler<Integer, Void>() {
-
-                                    @Override
-                                    public void completed(Integer result, Void attachment) {
-                                        System.out.println("Log Entry: [" + logEntry + "] written to file");
-                                    }
-
-                                    @Override
-                                    public void failed(Throwable exc, Void attachment) {
-                                        System.out
-                                                .println("Log Entry: [" + logEntry + "] could not be written to file");
-                                    }
-
-                                });
-                    } catch (Exception e) {
-                        System.out.println("An error occured while writing log to file " + e.getMessage());
+                    LogRecord first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        flush();
+                        continue;
                     }
+                    long deadline = System.currentTimeMillis() + flushMillis;
+                    drained.add(first);
+                    addAll(drained);
+                    // Keep filling the batch until it is full or the oldest entry is due
+                    while (System.currentTimeMillis() < deadline) {
+                        if (queue.drainTo(drained, 1024) == 0) {
+                            LogRecord next = queue.poll(deadline - System.currentTimeMillis(),
+                                    TimeUnit.MILLISECONDS);
+                            if (next == null)
+                                break;
+                            drained.add(next);
+                        }
+                        addAll(drained);
+                    }
+                    flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception | InternalError e) {
+                    // InternalError is how a fault on the mapped index, e.g. a full disk, surfaces
+                    fail(e);
+                    entriesLost += drained.size();
+                    drained.clear();
+                }
+            }
+        }
+
+        /**
+         * Gives up the current segment after a failed write. The entries of the
+         * unwritten batch are lost; writing continues in a new segment.
+         */
+        private void fail(Throwable e) {
+            System.out.println("An error occured while writing log to file " + segmentLog(directory, segmentId)
+                    + ": " + e.getMessage() + ", " + batchEntries + " entries lost, continuing in a new segment");
+            entriesLost += batchEntries;
+            entriesWritten -= batchEntries;
+            batchEntries = 0;
+            batch.clear();
+            try {
+                fileChannel.close();
+                if (position == 0) {
+                    Files.deleteIfExists(segmentIndex(directory, segmentId));
+                    Files.deleteIfExists(segmentLog(directory, segmentId));
+                } else {
+                    index.close();
                 }
+            } catch (Exception | InternalError closeFailure) {
+                // The segment is abandoned either way
+            }
+            failed = true;
+        }
 
+        private boolean reopen() {
+            try {
+                segmentId++;
+                openSegment();
+                failed = false;
+                System.out.println("Log writing resumed in " + segmentLog(directory, segmentId).getFileName());
+                return true;
+            } catch (IOException e) {
+                return false;
             }
+        }
+
+        /**
+         * Takes and discards entries for a while, so the readers are not held up
+         * while nothing can be written.
+         */
+        private void discardFor(long millis, ArrayDeque<LogRecord> drained) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                LogRecord record = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    entriesLost += 1 + queue.drainTo(drained);
+                    drained.clear();
+                }
+                if (!running && queue.isEmpty())
+                    return;
+            }
+        }
+
+        private void addAll(ArrayDeque<LogRecord> drained) throws Exception {
+            LogRecord record;
+            while ((record = drained.peek()) != null) {
+                add(record);
+                drained.poll();
+            }
+        }
+
+        private void add(LogRecord record) throws Exception {
+            byte[] entry = record.bytes;
+            long segmentEnd = position + batch.position();
+            if (segmentEnd > 0 && segmentEnd + entry.length > segmentBytes) {
+                flush();
+                rollSegment();
+            }
+            if (entry.length > batch.remaining())
+                flush();
+            index.add(position + batch.position(), record.timestamp, record.hostHash);
+            if (entry.length > batch.capacity()) {
+                write(ByteBuffer.wrap(entry));
+            } else {
+                batch.put(entry);
+                batchEntries++;
+            }
+            entriesWritten++;
+        }
+
+        private void flush() throws Exception {
+            if (batch.position() > 0) {
+                batch.flip();
+                write(batch);
+                batch.clear();
+                if (forcePolicy == ForcePolicy.BATCH)
+                    fileChannel.force(false);
+            }
+            long now = System.currentTimeMillis();
+            if (forcePolicy == ForcePolicy.INTERVAL && unforcedWrites && now - lastForce >= flushMillis) {
+                fileChannel.force(false);
+                unforcedWrites = false;
+                lastForce = now;
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws Exception {
+            while (buffer.hasRemaining())
+                position += fileChannel.write(buffer, position).get();
+            if (buffer == batch)
+                batchEntries = 0;
+            unforcedWrites = true;
+        }
+
+        private void openSegment() throws IOException {
+            fileChannel = AsynchronousFileChannel.open(segmentLog(directory, segmentId), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            index = new SegmentIndex(segmentIndex(directory, segmentId), segmentBytes);
+            position = 0;
+        }
+
+        private void closeSegment() throws IOException {
+            index.close();
+            fileChannel.force(false);
+            fileChannel.close();
+            unforcedWrites = false;
+        }
+
+        private void rollSegment() throws IOException {
+            closeSegment();
+            segmentId++;
+            openSegment();
+            applyRetention();
+        }
+
+        /**
+         * Deletes the oldest closed segments beyond retainSegments and those last
+         * written to more than retainMillis ago.
+         */
+        private void applyRetention() throws IOException {
+            List<Long> segments = listSegments(directory);
+            segments.remove(segmentId);
+            long cutoff = System.currentTimeMillis() - retainMillis;
+            int excess = retainSegments > 0 ? segments.size() + 1 - retainSegments : 0;
+            for (long segment : segments) {
+                Path log = segmentLog(directory, segment);
+                if (excess > 0 || (retainMillis > 0 && Files.getLastModifiedTime(log).toMillis() < cutoff)) {
+                    Files.deleteIfExists(segmentIndex(directory, segment));
+                    Files.deleteIfExists(log);
+                    excess--;
+                    System.out.println("Retention removed log segment " + log.getFileName());
+                }
+            }
+        }
+
+        /**
+         * Stops accepting work, writes whatever is still queued and closes the segment.
+         */
+        void close() {
+            running = false;
+            try {
+                join();
+                if (!failed)
+                    closeSegment();
+                System.out.println("Log segment closed after " + entriesWritten + " entries"
+                        + (entriesLost > 0 ? ", " + entriesLost + " entries lost to write errors" : ""));
+            } catch (Exception e) {
+                System.out.println("An error occured while closing the log file " + e.getMessage());
+            }
+        }
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static Path segmentLog(Path directory, long segment) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, LOG_SUFFIX));
+    }
+
+    private static Path segmentIndex(Path directory, long segment) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, INDEX_SUFFIX));
+    }
+
+    private static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return segments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Sparse, memory-mapped index of one log segment.
+     * Entries are grouped into blocks of at least BLOCK_SIZE bytes and every closed
+     * block gets one index entry: its start offset, the smallest and largest entry
+     * timestamp in the block, the running maximum timestamp of the segment up to and
+     * including the block, and a 64 bit bloom filter of the client hosts in the block.
+     * The running maximum never decreases, so a query can binary search for the
+     * first block that may hold its start time even though spooled or delayed
+     * entries arrive out of order. The header holds the number of entries and the
+     * offset where unindexed data (the open block) begins.
+     */
+    private static final class SegmentIndex {
+        private static final int BLOCK_SIZE = 4096;
+        private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+        private static final int ENTRY_SIZE = 5 * Long.BYTES;
+
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int count = 0;
+        private long blockStart = -1;
+        private long blockMin;
+        private long blockMax;
+        private long blockHosts;
+        private long runningMax = Long.MIN_VALUE;
+
+        SegmentIndex(Path file, long segmentBytes) throws IOException {
+            capacity = (int) Math.min(segmentBytes / BLOCK_SIZE + 2, (Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+            }
+        }
+
+        void add(long offset, long timestamp, int hostHash) {
+            if (blockStart >= 0 && offset - blockStart >= BLOCK_SIZE && count < capacity)
+                closeBlock(offset);
+            if (blockStart < 0) {
+                blockStart = offset;
+                blockMin = timestamp;
+                blockMax = timestamp;
+                blockHosts = 0;
+            }
+            blockMin = Math.min(blockMin, timestamp);
+            blockMax = Math.max(blockMax, timestamp);
+            blockHosts |= hostBits(hostHash);
+        }
+
+        void close() {
+            if (blockStart >= 0 && count < capacity)
+                closeBlock(-1);
+            buffer.force();
+        }
+
+        private void closeBlock(long nextOffset) {
+            runningMax = Math.max(runningMax, blockMax);
+            buffer.putLong(HEADER_SIZE + count * ENTRY_SIZE, blockStart)
+                    .putLong(HEADER_SIZE + count * ENTRY_SIZE + 8, blockMin)
+                    .putLong(HEADER_SIZE + count * ENTRY_SIZE + 16, blockMax)
+                    .putLong(HEADER_SIZE + count * ENTRY_SIZE + 24, runningMax)
+                    .putLong(HEADER_SIZE + count * ENTRY_SIZE + 32, blockHosts);
+            count++;
+            // Publish the entry before the count, so a reader never sees a partial one
+            buffer.putLong(Integer.BYTES, nextOffset).putInt(0, count);
+            blockStart = -1;
+        }
+
+        static long hostBits(int hostHash) {
+            return (1L << (hostHash & 63)) | (1L << ((hostHash >>> 6) & 63));
+        }
+    }
+
+    /**
+     * Prints the entries logged between two times, optionally only those from one
+     * client host. Uses the segment indexes to skip blocks that cannot match and
+     * scans only the unindexed tail of each segment in full.
+     */
+    private static void query(String from, String to, String host) {
+        long fromMillis;
+        long toMillis;
+        try {
+            fromMillis = Instant.from(TIMESTAMP_FORMAT.parse(from)).toEpochMilli();
+            toMillis = Instant.from(TIMESTAMP_FORMAT.parse(to)).toEpochMilli() + 999;
         } catch (Exception e) {
-            System.out.println("An error was encountered while setting up the server");
+            System.out.println("Invalid time, expected the format yyyy-MM-dd HH:mm:ss: " + e.getMessage());
+            return;
+        }
+        long hostBits = host == null ? 0 : SegmentIndex.hostBits(host.hashCode());
+        long matches = 0;
+        try {
+            for (long segment : listSegments(logDirectory)) {
+                try (FileChannel log = FileChannel.open(segmentLog(logDirectory, segment), StandardOpenOption.READ);
+                        FileChannel indexChannel = FileChannel.open(segmentIndex(logDirectory, segment),
+                                StandardOpenOption.READ)) {
+                    ByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                    int count = index.getInt(0);
+                    long indexedEnd = count == 0 ? 0 : index.getLong(Integer.BYTES);
+                    if (indexedEnd < 0)
+                        indexedEnd = log.size();
+
+                    // First block whose running maximum reaches the start of the range
+                    int low = 0;
+                    int high = count;
+                    while (low < high) {
+                        int middle = (low + high) >>> 1;
+                        int entry = SegmentIndex.HEADER_SIZE + middle * SegmentIndex.ENTRY_SIZE;
+                        if (index.getLong(entry + 24) < fromMillis)
+                            low = middle + 1;
+                        else
+                            high = middle;
+                    }
+                    for (int i = low; i < count; i++) {
+                        int entry = SegmentIndex.HEADER_SIZE + i * SegmentIndex.ENTRY_SIZE;
+                        if (index.getLong(entry + 8) > toMillis || index.getLong(entry + 16) < fromMillis)
+                            continue;
+                        if (host != null && (index.getLong(entry + 32) & hostBits) != hostBits)
+                            continue;
+                        long end = i + 1 < count ? index.getLong(entry + SegmentIndex.ENTRY_SIZE) : indexedEnd;
+                        matches += printMatches(log, index.getLong(entry), end, fromMillis, toMillis, host);
+                    }
+                    matches += printMatches(log, indexedEnd, log.size(), fromMillis, toMillis, host);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("An error occured while querying the log segments: " + e.getMessage());
+        }
+        System.out.println(matches + " matching entries");
+    }
+
+    /**
+     * Streams one byte range of a segment and prints the entries in it that fall in
+     * the time range and come from the given host.
+     */
+    private static long printMatches(FileChannel log, long start, long end, long fromMillis, long toMillis,
+            String host) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Math.max(end - start, 1), 1024 * 1024));
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long matches = 0;
+        long position = start;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = log.read(buffer, position);
+            if (read < 0)
+                break;
+            position += read;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    matches += printIfMatches(line, fromMillis, toMillis, host);
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+        return matches + printIfMatches(line, fromMillis, toMillis, host);
+    }
+
+    private static int printIfMatches(ByteArrayOutputStream line, long fromMillis, long toMillis, String host) {
+        if (line.size() == 0)
+            return 0;
+        // Entries look like "[/host:port] : [[yyyy-MM-dd HH:mm:ss] : [LEVEL] - message] "
+        String entry = line.toString(StandardCharsets.UTF_8);
+        int separator = entry.indexOf("] : [[");
+        if (separator < 0 || entry.length() < separator + 25)
+            return 0;
+        if (host != null && !entry.substring(0, separator).contains("/" + host + ":"))
+            return 0;
+        try {
+            long timestamp = Instant.from(TIMESTAMP_FORMAT.parse(entry.substring(separator + 6, separator + 25)))
+                    .toEpochMilli();
+            if (timestamp > toMillis || timestamp + 999 < fromMillis)
+                return 0;
+        } catch (Exception e) {
+            return 0;
+        }
+        System.out.println(entry);
+        return 1;
+    }
+
+    /**
+     * Histogram of the one-way latency from sendLoad() writing a frame to the server
+     * decoding it. The frame's own timestamp only has millisecond precision, so
+     * sendLoad() starts each message with its System.nanoTime() in hex, which works
+     * because the embedded server shares the sender's clock. Messages without that
+     * stamp are not recorded. Buckets are exact below 1024 microseconds and within
+     * 1/512 of the value above.
+     */
+    private static final class LatencyRecorder {
+        static final int STAMP_DIGITS = 16;
+        private static final long MAX_MICROS = 60_000_000;
+        private static final int SUB_BUCKETS = 512;
+        private final AtomicLongArray buckets = new AtomicLongArray(bucket(MAX_MICROS) + 1);
+        private final LongAdder count = new LongAdder();
+
+        void record(ByteBuffer frame, int messageStart, int messageLength) {
+            if (messageLength < STAMP_DIGITS)
+                return;
+            long sent = 0;
+            for (int i = 0; i < STAMP_DIGITS; i++) {
+                int digit = Character.digit(frame.get(messageStart + i), 16);
+                if (digit < 0)
+                    return;
+                sent = sent << 4 | digit;
+            }
+            long micros = (System.nanoTime() - sent) / 1000;
+            buckets.incrementAndGet(bucket(Math.max(0, Math.min(micros, MAX_MICROS))));
+            count.increment();
+        }
+
+        long percentileMicros(double percentile) {
+            long target = (long) Math.ceil(count.sum() * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0)
+                    return lowerBound(i);
+            }
+            return MAX_MICROS;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 2 * SUB_BUCKETS)
+                return (int) micros;
+            // Keep the top ten bits, so micros >> shift lies in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+            int shift = 63 - Long.numberOfLeadingZeros(micros) - 9;
+            return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS)
+                return bucket;
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            return ((bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + (long) SUB_BUCKETS) << shift;
+        }
+    }
+
+    /**
+     * Runs the same loopback workload against both connection modes and prints the
+     * connections held open, the ingest throughput and the entry latency of each.
+     */
+    private static void loadTest(int connections, int entriesPerConnection) {
+        System.out.printf("Load test: %d connections x %d entries%n", connections, entriesPerConnection);
+        List<String> results = new ArrayList<>();
+        for (Mode mode : Mode.values()) {
+            try {
+                results.add(runLoadTest(mode, connections, entriesPerConnection));
+            } catch (Exception e) {
+                results.add(String.format("%-9s failed: %s", mode, e.getMessage()));
+            }
+        }
+        System.out.printf("%n%-9s %12s %14s %8s %8s%n", "mode", "connections", "entries/s", "p50 us", "p99 us");
+        results.forEach(System.out::println);
+    }
+
+    private static String runLoadTest(Mode mode, int connections, int entriesPerConnection) throws Exception {
+        long total = (long) connections * entriesPerConnection;
+        List<SocketChannel> clients = new ArrayList<>();
+        try (EmbeddedServer server = new EmbeddedServer(mode.name())) {
+            try {
+                // Connect everything first, so every connection is open while entries flow
+                for (int i = 0; i < connections; i++) {
+                    clients.add(server.connect());
+                }
+                long connected = server.awaitConnections(connections, 10_000);
+
+                long start = System.nanoTime();
+                int senders = Math.min(connections, Runtime.getRuntime().availableProcessors());
+                List<Thread> senderThreads = new ArrayList<>();
+                for (int s = 0; s < senders; s++) {
+                    List<SocketChannel> slice = new ArrayList<>();
+                    for (int i = s; i < clients.size(); i += senders)
+                        slice.add(clients.get(i));
+                    Thread sender = new Thread(() -> sendLoad(slice, entriesPerConnection), "loadtest-sender");
+                    sender.start();
+                    senderThreads.add(sender);
+                }
+                for (Thread sender : senderThreads)
+                    sender.join();
+                server.awaitEntries(total, 60_000);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                return String.format("%-9s %12d %14.0f %8d %8d", mode, connected, server.entriesWritten() / seconds,
+                        server.latencyPercentileMicros(50), server.latencyPercentileMicros(99));
+            } finally {
+                for (SocketChannel client : clients)
+                    client.close();
+            }
+        }
+    }
+
+    /**
+     * A server running inside this JVM on an ephemeral loopback port, writing its
+     * segments to a temporary directory that is deleted again on close. Used by the
+     * load test and by NetworkingBenchmark; only one can run at a time.
+     */
+    static final class EmbeddedServer implements AutoCloseable {
+        private final Path directory;
+        private final ServerSocketChannel serverChannel;
+        private final Thread server;
+
+        /**
+         * @param mode "selector" or "threads"
+         */
+        EmbeddedServer(String mode) throws IOException {
+            Mode serverMode = Mode.valueOf(mode.toUpperCase());
+            directory = Files.createTempDirectory("remote_log_embedded");
+            logWriter = new LogWriter(directory, 256 * 1024, 200, ForcePolicy.NONE, 1024L * 1024 * 1024, 0, 0);
+            logWriter.start();
+            latencyRecorder = new LatencyRecorder();
+            openConnections.set(0);
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0), 4096);
+            server = new Thread(() -> {
+                try {
+                    if (serverMode == Mode.SELECTOR)
+                        runSelectorServer(serverChannel);
+                    else
+                        runThreadPerConnectionServer(serverChannel);
+                } catch (IOException e) {
+                    System.out.println("Embedded server failed: " + e.getMessage());
+                }
+            }, "embedded-server");
+            server.start();
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        /**
+         * Opens a framed connection to the server.
+         */
+        SocketChannel connect() throws IOException {
+            SocketChannel client = SocketChannel.open(address());
+            client.write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip());
+            return client;
+        }
+
+        /**
+         * Waits until the server holds the given number of connections or the
+         * timeout has passed, and returns how many it holds.
+         */
+        long awaitConnections(long connections, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (openConnections.get() < connections && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            return openConnections.get();
+        }
+
+        long entriesWritten() {
+            return logWriter.entriesWritten();
+        }
+
+        /**
+         * Waits until the writer has written the given number of entries or the
+         * timeout has passed.
+         */
+        void awaitEntries(long entries, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (logWriter.entriesWritten() < entries && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+        }
+
+        /**
+         * One-way latency in microseconds from sendLoad() writing a frame to the
+         * server decoding it.
+         */
+        long latencyPercentileMicros(double percentile) {
+            return latencyRecorder.percentileMicros(percentile);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+            try {
+                server.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            logWriter.close();
+            latencyRecorder = null;
+            try (var files = Files.walk(directory)) {
+                files.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Sends entriesPerConnection frames on each of the connections, round robin.
+     * Every message starts with its send time for the latency recorder.
+     */
+    static void sendLoad(List<SocketChannel> clients, int entriesPerConnection) {
+        byte[] level = "INFO".getBytes(StandardCharsets.UTF_8);
+        byte[] message = " load test entry with a typical log message length of about one hundred bytes"
+                .getBytes(StandardCharsets.UTF_8);
+        int length = FRAME_HEADER_SIZE + level.length + LatencyRecorder.STAMP_DIGITS + message.length;
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+        try {
+            for (int round = 0; round < entriesPerConnection; round++) {
+                for (SocketChannel client : clients) {
+                    frame.clear()
+                            .putInt(length)
+                            .putLong(System.currentTimeMillis())
+                            .put((byte) level.length)
+                            .put(level);
+                    long sent = System.nanoTime();
+                    for (int shift = 4 * (LatencyRecorder.STAMP_DIGITS - 1); shift >= 0; shift -= 4)
+                        frame.put((byte) Character.forDigit((int) (sent >>> shift) & 0xF, 16));
+                    frame.put(message).flip();
+                    while (frame.hasRemaining())
+                        client.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Load test sender failed: " + e.getMessage());
         }
     }
 